@@ -6,84 +6,309 @@
 package comdis_6;
 
 import jade.core.AID;
-import jade.lang.acl.ACLMessage;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
+ * State of an auction in a seller's catalogue. It is kept compact so large
+ * catalogues fit in memory: the CFPs are built by the seller when they are
+ * sent, and the bidder sets are only allocated once somebody bids.
  *
  * @author aculledor
  */
 public class Auction {
+    // Default duration of rounds IN MILISECONDS
+    public static final int DEFAULT_ROUND_DURATION = 10000;
+
     private final String title;
+    private final byte[] titleBytes;
     private int price, round;
-    private final int increment;
+    private final int increment, roundDuration;
+    private final AuctionType type;
     private final long id;
-    private List<AID> lastRoundBuyers, buyers;
-    private ACLMessage cfp;
+    private long deadline;
+    private long insertedAt;
+    private long announcedAt;
+
+    // Bidders of the last and current round, null until the first bid
+    private Set<AID> lastRoundBuyers, buyers;
+
+    // Proxy maximum of the buyers the seller bids for, in the order they
+    // registered, null until the first one
+    private Map<AID, Integer> proxies;
 
     public Auction(String title, int price, int increment) {
-        this.id = System.currentTimeMillis();
+        this(title, price, increment, DEFAULT_ROUND_DURATION);
+    }
+
+    public Auction(String title, int price, int increment, int roundDuration) {
+        this(title, price, increment, roundDuration, AuctionType.ENGLISH);
+    }
+
+    /**
+     * @param title
+     * @param price starting price: the first English or Dutch price, the
+     * reserve price of a sealed-bid auction
+     * @param increment price step between rounds, up for English auctions,
+     * down for Dutch auctions
+     * @param roundDuration in milliseconds
+     * @param type
+     */
+    public Auction(String title, int price, int increment, int roundDuration, AuctionType type) {
+        this(AuctionIds.next(), title, price, increment, roundDuration, type);
+    }
+
+    /**
+     * Builds an auction with a known id, used by the AuctionJournal replay,
+     * which observes the ids it reads so new ones are never reused
+     */
+    Auction(long id, String title, int price, int increment, int roundDuration, AuctionType type) {
+        this.id = id;
+        this.type = type;
         this.title = title;
+        this.titleBytes = AuctionCodec.encodeTitle(title);
         this.round = 0;
         this.price = price;
         this.increment = increment;
-        this.lastRoundBuyers = null;
-        this.buyers = new ArrayList<>();
-        this.cfp = new ACLMessage(ACLMessage.CFP);
-        this.cfp.setContent(this.title + "-" + price);
-        this.cfp.setConversationId("book-offer");
-        this.cfp.setReplyWith("cfp-" + this.id + "-" + this.round);
+        this.roundDuration = roundDuration;
+        this.deadline = RoundScheduler.NONE;
     }
 
     public String getTitle() {
         return title;
     }
 
+    /**
+     * UTF-8 title, encoded once for the AuctionCodec
+     * @return the encoded title
+     */
+    public byte[] getTitleBytes() {
+        return titleBytes;
+    }
+
     public long getId() {
         return id;
     }
 
+    /**
+     * Time (System.nanoTime) when the auction entered a seller's catalogue
+     * @return the insertion time in nanoseconds
+     */
+    public long getInsertedAt() {
+        return insertedAt;
+    }
+
+    public Auction markInserted() {
+        return markInserted(System.nanoTime());
+    }
+
+    /**
+     * @param now insertion time in nanoseconds, of whatever clock the sale
+     * latency is measured with
+     * @return this auction
+     */
+    public Auction markInserted(long now) {
+        insertedAt = now;
+        return this;
+    }
+
     public int getOriginalPrice() {
         return price;
     }
 
+    public AuctionType getType() {
+        return type;
+    }
+
+    /**
+     * @return the price of the current round: rising for English auctions,
+     * falling for Dutch auctions and the reserve for sealed-bid auctions
+     */
     public int getCurrentPrice() {
-        return price + (increment * round);
+        return priceAt(round);
     }
 
     public int getLastRoundPrice() {
-        return price + (increment * (round - 1));
+        return priceAt(round - 1);
+    }
+
+    /**
+     * @return true if a Dutch auction can go down to another round with a
+     * positive price
+     */
+    public boolean canLowerPrice() {
+        return type == AuctionType.DUTCH && priceAt(round + 1) > 0;
+    }
+
+    /**
+     * @param round
+     * @return the price of the round
+     */
+    public int priceAt(int round) {
+        switch (type) {
+            case ENGLISH:
+                return price + (increment * round);
+            case DUTCH:
+                return price - (increment * round);
+            default:
+                return price;
+        }
+    }
+
+    /**
+     * @param max a price
+     * @return the last round of an English auction whose price is at most
+     * max, or -1 if even the first round is dearer
+     */
+    public int lastRoundWithin(int max) {
+        if (max < price) {
+            return -1;
+        }
+        return increment > 0 ? (max - price) / increment : Integer.MAX_VALUE;
     }
 
     public int getIncrement() {
         return increment;
     }
 
-    public List<AID> getLastRoundBuyers() {
-        return lastRoundBuyers;
+    /**
+     * Duration of each round of this auction
+     * @return the duration in milliseconds
+     */
+    public int getRoundDuration() {
+        return roundDuration;
+    }
+
+    /**
+     * End of the current round, set by the RoundScheduler
+     * @return the deadline in milliseconds, or RoundScheduler.NONE
+     */
+    public long getDeadline() {
+        return deadline;
     }
 
-    public List<AID> getBuyers() {
-        return buyers;
+    Auction setDeadline(long deadline) {
+        this.deadline = deadline;
+        return this;
     }
 
     /**
-     * Copies the current list to lastRoundBuyers list and creates a new one
+     * Last time the auction was announced to the buyers, set by the seller
+     * @return the time in milliseconds, or 0 if it never was
+     */
+    public long getAnnouncedAt() {
+        return announcedAt;
+    }
+
+    Auction setAnnouncedAt(long announcedAt) {
+        this.announcedAt = announcedAt;
+        return this;
+    }
+
+    /**
+     * Bidders of the previous round, in the order they first accepted
+     * @return the bidders, read-only
+     */
+    public Set<AID> getLastRoundBuyers() {
+        return lastRoundBuyers == null ? Collections.<AID>emptySet() : Collections.unmodifiableSet(lastRoundBuyers);
+    }
+
+    /**
+     * Bidders of the current round, in the order they first accepted
+     * @return the bidders, read-only
+     */
+    public Set<AID> getBuyers() {
+        return buyers == null ? Collections.<AID>emptySet() : Collections.unmodifiableSet(buyers);
+    }
+
+    /**
+     * Adds a bidder to the current round
+     * @param buyer
      * @return the auction
      */
-    public Auction pushBuyersList() {
-        lastRoundBuyers = new ArrayList<>(buyers);
-        buyers = new ArrayList<>();
+    public Auction addBuyer(AID buyer) {
+        if (buyers == null) {
+            buyers = new LinkedHashSet<>();
+        }
+        buyers.add(buyer);
         return this;
     }
 
-    public ACLMessage getCFP() {
-        return cfp;
+    /**
+     * Removes a bidder from the current round
+     * @param buyer
+     * @return the auction
+     */
+    public Auction removeBuyer(AID buyer) {
+        if (buyers != null) {
+            buyers.remove(buyer);
+        }
+        return this;
     }
 
-    public Auction setCFP(ACLMessage cfp) {
-        this.cfp = cfp;
+    /**
+     * Registers the most a buyer lets the seller bid for it. A proxy can be
+     * raised but not lowered nor withdrawn
+     * @param buyer
+     * @param max
+     * @return the auction
+     */
+    public Auction setProxy(AID buyer, int max) {
+        if (proxies == null) {
+            proxies = new LinkedHashMap<>();
+        }
+        proxies.merge(buyer, max, Math::max);
+        return this;
+    }
+
+    /**
+     * @return the proxy maximum by buyer, read-only
+     */
+    public Map<AID, Integer> getProxies() {
+        return proxies == null ? Collections.<AID, Integer>emptyMap() : Collections.unmodifiableMap(proxies);
+    }
+
+    /**
+     * Moves to a later round at once, for bidders known to accept every
+     * price up to it, so they are the bidders of that round and of the one
+     * before
+     * @param round
+     * @param bidders kept by the auction
+     * @return the auction
+     */
+    public Auction skipToRound(int round, Set<AID> bidders) {
+        this.round = round;
+        buyers = bidders;
+        lastRoundBuyers = new LinkedHashSet<>(bidders);
+        return this;
+    }
+
+    /**
+     * Puts back the bidders of the previous round of a replayed auction
+     * @param bidders kept by the auction
+     * @return the auction
+     */
+    Auction restoreLastRoundBuyers(Set<AID> bidders) {
+        lastRoundBuyers = bidders.isEmpty() ? null : bidders;
+        return this;
+    }
+
+    /**
+     * Swaps the current set with the lastRoundBuyers set and empties the new
+     * current one. Both sets are reused so their capacity stays at the peak
+     * number of bidders instead of being reallocated every round
+     * @return the auction
+     */
+    public Auction pushBuyersList() {
+        Set<AID> swap = lastRoundBuyers;
+        lastRoundBuyers = buyers;
+        buyers = swap;
+        if (buyers != null) {
+            buyers.clear();
+        }
         return this;
     }
     
@@ -100,26 +325,32 @@ public class Auction {
     public int getRound(){
         return round;
     }
+
     
-    public Auction resetCFP(){
-        cfp = new ACLMessage(ACLMessage.CFP);
-        cfp.setContent(title + "-" + getCurrentPrice());
-        cfp.setConversationId("book-offer");
-        cfp.setReplyWith("cfp-" + id + "-" + round); // Unique value
+    /**
+     * Puts a replayed auction back in the round it was in
+     * @param round
+     * @return the auction
+     */
+    Auction restoreRound(int round) {
+        this.round = round;
+        if (this.buyers != null) {
+            this.buyers.clear();
+        }
         return this;
     }
-    
+
     public Auction resetAuction(){
         this.round = 0;
         this.lastRoundBuyers = null;
-        this.buyers = new ArrayList<>();
-        this.resetCFP();
+        this.buyers = null;
+        this.proxies = null;
         return this;
     }
     
     @Override
     public String toString() {
-        String toret = "Auction\n{" + "id=" + id + ", bookTitle=" + title + ", price=" + price + "€, increment=" + increment + "€, Round=" + round;
+        String toret = "Auction\n{" + "id=" + id + ", type=" + type + ", bookTitle=" + title + ", price=" + price + "€, increment=" + increment + "€, Round=" + round;
         //lastRoundBuyers
         if(lastRoundBuyers != null && !lastRoundBuyers.isEmpty()){
             toret += "\nlastRoundBuyers {";
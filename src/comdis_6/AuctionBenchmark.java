@@ -0,0 +1,202 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import jade.core.Profile;
+import jade.core.ProfileImpl;
+import jade.core.Runtime;
+import jade.wrapper.AgentContainer;
+import jade.wrapper.StaleProxyException;
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Headless load generator for the seller/buyer auction loop. Boots an
+ * in-process JADE main container, starts the sellers and buyers without GUI,
+ * lets them trade for a fixed time and prints the throughput report.
+ *
+ * Usage: java -cp jade.jar:build/classes comdis_6.AuctionBenchmark
+ * [sellers=2] [auctions=50] [buyers=10] [titles=25] [wants=5]
+ * [duration=60] [round=10000] [seed=42] [batched=false] [journal=dir]
+ * [catalogue=file] [budget=n] [strategy=cheapest|greedy] [proxy=false]
+ * [type=english|dutch|first-price|second-price] [shards=1] [containers=0]
+ * [port=1099] [log=warn] [snapshot=file] [verbose=false]
+ * or from the IDE build: ant -Drun.class=comdis_6.AuctionBenchmark run-single
+ *
+ * With containers=N the buyers run in N peripheral containers, separate
+ * JVMs on loopback placed by PeripheralContainers, while the sellers and
+ * their counters stay in the main container, so the report includes the
+ * cost of every CFP, reply and order crossing containers.
+ *
+ * @author aculledor
+ */
+public class AuctionBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        int sellers = Integer.parseInt(options.getOrDefault("sellers", "2"));
+        int auctions = Integer.parseInt(options.getOrDefault("auctions", "50"));
+        int buyers = Integer.parseInt(options.getOrDefault("buyers", "10"));
+        int titles = Integer.parseInt(options.getOrDefault("titles", "25"));
+        int wants = Integer.parseInt(options.getOrDefault("wants", "5"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "60"));
+        int round = Integer.parseInt(options.getOrDefault("round", String.valueOf(Auction.DEFAULT_ROUND_DURATION)));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        boolean batched = Boolean.parseBoolean(options.getOrDefault("batched", "false"));
+        String journal = options.get("journal");
+        String catalogue = options.get("catalogue");
+        String budget = options.get("budget");
+        String strategy = options.getOrDefault("strategy", "cheapest");
+        boolean proxy = Boolean.parseBoolean(options.getOrDefault("proxy", "false"));
+        AuctionType type = AuctionType.parse(options.getOrDefault("type", "english"));
+        if (type == null) {
+            throw new IllegalArgumentException("Unknown auction type " + options.get("type"));
+        }
+        int shards = Integer.parseInt(options.getOrDefault("shards", "1"));
+        int containers = Integer.parseInt(options.getOrDefault("containers", "0"));
+        int port = Integer.parseInt(options.getOrDefault("port", "1099"));
+        boolean verbose = Boolean.parseBoolean(options.getOrDefault("verbose", "false"));
+        EventLog.setLevel(EventLog.parseLevel(options.get("log"), verbose ? EventLog.Level.INFO : EventLog.Level.WARN));
+
+        Random random = new Random(seed);
+        AuctionStats stats = new AuctionStats();
+        stats.register("benchmark");
+        if (options.containsKey("snapshot")) {
+            stats.startSnapshots(new File(options.get("snapshot")), 1000);
+        }
+
+        // Events at or above the log level still reach System.out, we keep the console for the report
+        PrintStream console = System.out;
+        if (!verbose) {
+            System.setOut(new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            }));
+        }
+
+        // Boot the in-process container, without RMA GUI nor HTTP MTP
+        Runtime runtime = Runtime.instance();
+        runtime.setCloseVM(false);
+        Profile profile = new ProfileImpl();
+        profile.setParameter(Profile.GUI, "false");
+        profile.setParameter(Profile.NO_MTP, "true");
+        profile.setParameter(Profile.LOCAL_PORT, String.valueOf(port));
+        if (containers > 0) {
+            profile.setParameter(Profile.LOCAL_HOST, "127.0.0.1");
+        }
+        AgentContainer container = runtime.createMainContainer(profile);
+        PeripheralContainers peripherals = containers > 0 ? new PeripheralContainers(containers, "127.0.0.1", port) : null;
+
+        // Buyers first so the sellers find them on their first tick
+        for (int i = 0; i < buyers; i++) {
+            Map<String, Integer> targetBooks = new HashMap<>();
+            for (int j = 0; j < wants; j++) {
+                targetBooks.put("book" + random.nextInt(titles), 20 + random.nextInt(80));
+            }
+            if (peripherals != null) {
+                // Remote buyers get their wishlist as title=price arguments,
+                // the larger the wishlist the more offers they answer
+                List<String> buyerArgs = new ArrayList<>();
+                buyerArgs.add("headless");
+                buyerArgs.add("strategy=" + strategy);
+                if (proxy) {
+                    buyerArgs.add("proxy");
+                }
+                if (budget != null) {
+                    buyerArgs.add("budget=" + budget);
+                }
+                for (Map.Entry<String, Integer> book : targetBooks.entrySet()) {
+                    buyerArgs.add(book.getKey() + "=" + book.getValue());
+                }
+                peripherals.place("buyer-" + i, BookBuyerAgent.class, buyerArgs, targetBooks.size());
+                continue;
+            }
+            container.createNewAgent("buyer-" + i, BookBuyerAgent.class.getName(),
+                    new Object[]{"headless", stats, targetBooks, "strategy=" + strategy,
+                        budget != null ? "budget=" + budget : "", proxy ? "proxy" : ""}).start();
+        }
+        if (peripherals != null) {
+            peripherals.start();
+        }
+        for (int i = 0; i < sellers; i++) {
+            Object[] sellerArgs = new Object[auctions + 6];
+            sellerArgs[0] = "headless";
+            sellerArgs[1] = stats;
+            sellerArgs[2] = batched ? "batched" : "";
+            sellerArgs[3] = journal != null ? "journal=" + journal : "";
+            sellerArgs[4] = catalogue != null ? "import=" + catalogue : "";
+            sellerArgs[5] = "shards=" + shards;
+            for (int j = 0; j < auctions; j++) {
+                // Dutch auctions open above the buyers' maximum prices and come down
+                int price = 10 + random.nextInt(40) + (type == AuctionType.DUTCH ? 60 : 0);
+                sellerArgs[j + 6] = new Auction("book" + random.nextInt(titles), price, 1 + random.nextInt(5), round, type);
+            }
+            container.createNewAgent("seller-" + i, BookSellerAgent.class.getName(), sellerArgs).start();
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(duration * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        console.println("sellers=" + sellers + " auctions/seller=" + auctions + " buyers=" + buyers
+                + " titles=" + titles + " wants/buyer=" + wants + " duration=" + duration + "s round=" + round + "ms seed=" + seed
+                + (batched ? " batched" : "") + " type=" + type + (shards > 1 ? " shards=" + shards : "")
+                + (containers > 0 ? " containers=" + containers : "") + " strategy=" + strategy + (proxy ? " proxy" : "") + (budget != null ? " budget=" + budget : ""));
+        console.printf("auctions closed     : %d (%.3f/s)%n", stats.getAuctionsClosed(), stats.getAuctionsClosed() / elapsed);
+        console.printf("trades failed       : %d%n", stats.getTradesFailed());
+        console.printf("trade refusals      : %d%n", stats.getTradesRefused());
+        console.printf("CFP messages sent   : %d (%.1f/s)%n", stats.getCfpMessages(), stats.getCfpMessages() / elapsed);
+        console.printf("CFP deliveries      : %d (%.1f/s)%n", stats.getCfpDeliveries(), stats.getCfpDeliveries() / elapsed);
+        console.printf("rounds per sale     : %.2f (%d rounds closed, %d skipped, %d open auctions)%n",
+                stats.perSale(stats.getSoldRounds()), stats.getRoundsClosed(), stats.getRoundsSkipped(), stats.getCatalogueSize());
+        console.printf("offers per sale     : %.1f announced, %.1f answered%n",
+                stats.perSale(stats.getOffersAnnounced()), stats.perSale(stats.getOffersAnswered()));
+        console.printf("messages per sale   : %.1f (CFP deliveries and replies)%n",
+                stats.perSale(stats.getCfpDeliveries() + stats.getReplyMessages()));
+        console.printf("insertion->trade p50: %.1f ms%n", stats.getLatencyPercentile(50));
+        console.printf("insertion->trade p99: %.1f ms%n", stats.getLatencyPercentile(99));
+        console.printf("trade timeouts      : %d%n", stats.getTradeTimeouts());
+        console.printf("trades in flight    : %d (peak %d)%n", stats.getTradesInFlight(), stats.getMaxTradesInFlight());
+        console.printf("order->answer p50   : %.1f ms%n", stats.getTradeLatencyPercentile(50));
+        console.printf("order->answer p99   : %.1f ms%n", stats.getTradeLatencyPercentile(99));
+        console.printf("buyer CFPs/batch    : %.2f (queue peak %d, decide p99 %.2f ms)%n",
+                stats.getCfpsPerBatch(), stats.getMaxBuyerQueue(), stats.getDecideLatencyP99());
+        console.printf("seller queue peak   : %d%n", stats.getMaxSellerQueue());
+
+        if (peripherals != null) {
+            for (int i = 0; i < peripherals.size(); i++) {
+                console.printf("node-%d              : %d buyers, load %d%n", i, peripherals.getAgentCount(i), peripherals.getLoad(i));
+            }
+            peripherals.stop();
+        }
+        try {
+            container.kill();
+        } catch (StaleProxyException e) {
+            e.printStackTrace();
+        }
+        runtime.shutDown();
+        System.setOut(console);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Binary codec for the auction messages, sent as ACL byte sequence content.
+ *
+ * Every message starts with a header [version:1][type:1][count:2] followed by
+ * count records, all big-endian:
+ * <ul>
+ * <li>CFP and TRADE records: [id:8][round:4][price:4][auctionType:1][titleLength:2][title:UTF-8]</li>
+ * <li>PROPOSAL records: [id:8][round:4][accepted:1][bid:4]</li>
+ * <li>INTERESTS records: [added:1][titleLength:2][title:UTF-8]</li>
+ * </ul>
+ * A single CFP is a CFP message with one record, a batched CFP lists every
+ * open auction. The buyer answers with a PROPOSAL message holding one decision
+ * per record; in sealed-bid auctions the price is the reserve and an accepted
+ * proposal carries the buyer's bid. An INTERESTS message lists titles a buyer
+ * started or stopped wanting.
+ *
+ * @author aculledor
+ */
+public final class AuctionCodec {
+
+    public static final byte VERSION = 2;
+
+    public static final byte CFP = 1;
+    public static final byte PROPOSAL = 2;
+    public static final byte TRADE = 3;
+    public static final byte INTERESTS = 4;
+
+    static final int HEADER_SIZE = 4;
+    static final int OFFER_SIZE = 8 + 4 + 4 + 1 + 2;
+    static final int PROPOSAL_SIZE = 8 + 4 + 1 + 4;
+    static final int INTEREST_SIZE = 1 + 2;
+
+    // Largest number of records a message can carry
+    public static final int MAX_RECORDS = 0xFFFF;
+
+    private AuctionCodec() {
+    }
+
+    /**
+     * UTF-8 bytes of a title, computed once per auction
+     * @param title
+     * @return the encoded title
+     */
+    public static byte[] encodeTitle(String title) {
+        byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("Title too long: " + bytes.length + " bytes");
+        }
+        return bytes;
+    }
+
+    /**
+     * Size of an offer record
+     * @param titleBytes the encoded title
+     * @return the size in bytes
+     */
+    public static int offerSize(byte[] titleBytes) {
+        return OFFER_SIZE + titleBytes.length;
+    }
+
+    /**
+     * Encodes a single offer record message
+     * @param type CFP or TRADE
+     * @param id auction id
+     * @param round auction round
+     * @param price offered price
+     * @param auctionType the AuctionType code
+     * @param titleBytes the encoded title
+     * @return the message content
+     */
+    public static byte[] encodeOffer(byte type, long id, int round, int price, byte auctionType, byte[] titleBytes) {
+        byte[] buffer = new byte[HEADER_SIZE + offerSize(titleBytes)];
+        writeHeader(buffer, type, 1);
+        writeOffer(buffer, HEADER_SIZE, id, round, price, auctionType, titleBytes);
+        return buffer;
+    }
+
+    /**
+     * Encodes a single proposal record message
+     * @param id auction id
+     * @param round auction round being answered
+     * @param accepted true if the buyer accepts the price
+     * @param bid the buyer's bid in sealed-bid auctions, 0 otherwise
+     * @return the message content
+     */
+    public static byte[] encodeProposal(long id, int round, boolean accepted, int bid) {
+        byte[] buffer = new byte[HEADER_SIZE + PROPOSAL_SIZE];
+        writeHeader(buffer, PROPOSAL, 1);
+        writeProposal(buffer, HEADER_SIZE, id, round, accepted, bid);
+        return buffer;
+    }
+
+    /**
+     * Encodes the titles a buyer started and stopped wanting, in as many
+     * messages as MAX_RECORDS requires
+     * @param added
+     * @param removed
+     * @return the contents of the messages, none if both are empty
+     */
+    public static List<byte[]> encodeInterests(Collection<String> added, Collection<String> removed) {
+        List<byte[]> titles = new ArrayList<>(added.size() + removed.size());
+        for (String title : added) {
+            titles.add(encodeTitle(title));
+        }
+        for (String title : removed) {
+            titles.add(encodeTitle(title));
+        }
+        List<byte[]> messages = new ArrayList<>();
+        for (int start = 0; start < titles.size(); start += MAX_RECORDS) {
+            int end = Math.min(titles.size(), start + MAX_RECORDS);
+            int size = HEADER_SIZE;
+            for (int i = start; i < end; i++) {
+                size += INTEREST_SIZE + titles.get(i).length;
+            }
+            byte[] buffer = new byte[size];
+            writeHeader(buffer, INTERESTS, end - start);
+            int offset = HEADER_SIZE;
+            for (int i = start; i < end; i++) {
+                offset = writeInterest(buffer, offset, i < added.size(), titles.get(i));
+            }
+            messages.add(buffer);
+        }
+        return messages;
+    }
+
+    /**
+     * Writes the message header
+     * @param buffer
+     * @param type CFP, PROPOSAL, TRADE or INTERESTS
+     * @param count number of records that follow
+     */
+    public static void writeHeader(byte[] buffer, byte type, int count) {
+        if (count > MAX_RECORDS) {
+            throw new IllegalArgumentException("Too many records: " + count);
+        }
+        buffer[0] = VERSION;
+        buffer[1] = type;
+        writeShort(buffer, 2, count);
+    }
+
+    /**
+     * Writes an offer record
+     * @return the offset after the record
+     */
+    public static int writeOffer(byte[] buffer, int offset, long id, int round, int price, byte auctionType, byte[] titleBytes) {
+        writeLong(buffer, offset, id);
+        writeInt(buffer, offset + 8, round);
+        writeInt(buffer, offset + 12, price);
+        buffer[offset + 16] = auctionType;
+        writeShort(buffer, offset + 17, titleBytes.length);
+        System.arraycopy(titleBytes, 0, buffer, offset + OFFER_SIZE, titleBytes.length);
+        return offset + OFFER_SIZE + titleBytes.length;
+    }
+
+    /**
+     * Writes a proposal record
+     * @return the offset after the record
+     */
+    public static int writeProposal(byte[] buffer, int offset, long id, int round, boolean accepted, int bid) {
+        writeLong(buffer, offset, id);
+        writeInt(buffer, offset + 8, round);
+        buffer[offset + 12] = (byte) (accepted ? 1 : 0);
+        writeInt(buffer, offset + 13, bid);
+        return offset + PROPOSAL_SIZE;
+    }
+
+    /**
+     * Writes an interest record
+     * @return the offset after the record
+     */
+    public static int writeInterest(byte[] buffer, int offset, boolean added, byte[] titleBytes) {
+        buffer[offset] = (byte) (added ? 1 : 0);
+        writeShort(buffer, offset + 1, titleBytes.length);
+        System.arraycopy(titleBytes, 0, buffer, offset + INTEREST_SIZE, titleBytes.length);
+        return offset + INTEREST_SIZE + titleBytes.length;
+    }
+
+    private static void writeShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] buffer, int offset, long value) {
+        writeInt(buffer, offset, (int) (value >>> 32));
+        writeInt(buffer, offset + 4, (int) value);
+    }
+
+    static int readShort(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+    }
+
+    static int readInt(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16)
+                | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+    }
+
+    static long readLong(byte[] buffer, int offset) {
+        return ((long) readInt(buffer, offset) << 32) | (readInt(buffer, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Reusable cursor over the records of a message. Reading does not
+     * allocate: the fields are decoded in place and titles are interned in a
+     * small cache keyed by their bytes, so a title already seen is returned
+     * without building a new String.
+     */
+    public static final class Reader {
+
+        private static final int TITLE_CACHE_BITS = 12;
+        private static final int TITLE_CACHE_SIZE = 1 << TITLE_CACHE_BITS;
+
+        private final byte[][] cachedBytes = new byte[TITLE_CACHE_SIZE][];
+        private final String[] cachedTitles = new String[TITLE_CACHE_SIZE];
+
+        private byte[] buffer;
+        private byte type;
+        private int count, index, offset, next;
+
+        /**
+         * Points the reader at a new message
+         * @param buffer the message content
+         * @return false if the content is not a message of this codec version
+         */
+        public boolean wrap(byte[] buffer) {
+            this.buffer = buffer;
+            this.index = 0;
+            this.count = 0;
+            this.next = HEADER_SIZE;
+            if (buffer == null || buffer.length < HEADER_SIZE || buffer[0] != VERSION) {
+                return false;
+            }
+            this.type = buffer[1];
+            this.count = readShort(buffer, 2);
+            return type == CFP || type == PROPOSAL || type == TRADE || type == INTERESTS;
+        }
+
+        public byte type() {
+            return type;
+        }
+
+        public int count() {
+            return count;
+        }
+
+        /**
+         * Moves to the next record
+         * @return false if there are no more records or the message is truncated
+         */
+        public boolean next() {
+            if (index >= count) {
+                return false;
+            }
+            offset = next;
+            if (type == PROPOSAL) {
+                next = offset + PROPOSAL_SIZE;
+            } else {
+                if (titleOffset() > buffer.length) {
+                    return false;
+                }
+                next = titleOffset() + titleLength();
+            }
+            if (next > buffer.length) {
+                return false;
+            }
+            index++;
+            return true;
+        }
+
+        public long id() {
+            return readLong(buffer, offset);
+        }
+
+        public int round() {
+            return readInt(buffer, offset + 8);
+        }
+
+        public int price() {
+            return readInt(buffer, offset + 12);
+        }
+
+        public boolean accepted() {
+            return buffer[offset + 12] != 0;
+        }
+
+        /**
+         * @return true if the title of an interests record is wanted, false
+         * if it no longer is
+         */
+        public boolean added() {
+            return buffer[offset] != 0;
+        }
+
+        /**
+         * @return the bid of a proposal record
+         */
+        public int bid() {
+            return readInt(buffer, offset + 13);
+        }
+
+        /**
+         * @return the AuctionType code of an offer record
+         */
+        public byte auctionType() {
+            return buffer[offset + 16];
+        }
+
+        public int titleLength() {
+            return readShort(buffer, type == INTERESTS ? offset + 1 : offset + 17);
+        }
+
+        public int titleOffset() {
+            return offset + (type == INTERESTS ? INTEREST_SIZE : OFFER_SIZE);
+        }
+
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        /**
+         * Title of the current offer or interests record, interned by its bytes
+         * @return the title
+         */
+        public String title() {
+            int start = titleOffset();
+            int length = titleLength();
+            int hash = 1;
+            for (int i = start; i < start + length; i++) {
+                hash = 31 * hash + buffer[i];
+            }
+            int slot = (hash * 0x9E3779B9) >>> (32 - TITLE_CACHE_BITS);
+            byte[] cached = cachedBytes[slot];
+            if (cached != null && cached.length == length && sameBytes(cached, start)) {
+                return cachedTitles[slot];
+            }
+            String title = new String(buffer, start, length, StandardCharsets.UTF_8);
+            cachedBytes[slot] = Arrays.copyOfRange(buffer, start, start + length);
+            cachedTitles[slot] = title;
+            return title;
+        }
+
+        private boolean sameBytes(byte[] cached, int start) {
+            for (int i = 0; i < cached.length; i++) {
+                if (cached[i] != buffer[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
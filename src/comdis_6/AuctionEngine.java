@@ -0,0 +1,590 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import comdis_6.EventLog.Level;
+import jade.core.AID;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Round rules of a seller's auctions, without agents nor clocks: the
+ * catalogue, the replies buffered for each round, the round deadlines and
+ * the auctions waiting to be announced. Every call takes the current time,
+ * so the same rules run in a BookSellerAgent on the system clock and in the
+ * AuctionSimulator on a virtual one. The engine sends nothing, it tells its
+ * Listener what to announce, journal and sell.
+ *
+ * @author aculledor
+ */
+public class AuctionEngine {
+
+    /**
+     * What the engine needs from whoever runs it
+     */
+    public interface Listener {
+
+        /**
+         * Auctions were queued for announcement, see getChanged
+         */
+        void changed();
+
+        /**
+         * @param auction moved to its next round
+         */
+        void roundAdvanced(Auction auction);
+
+        /**
+         * @param auction went back to its first round
+         */
+        void reset(Auction auction);
+
+        /**
+         * @param trade a closed auction and the bidders to sell it to
+         */
+        void closed(Trade trade);
+    }
+
+    // Buffered reply of a buyer that did not accept
+    private static final int REJECTED = -1;
+
+    // The catalogue of books for sale (maps the id of an auction to its object)
+    private final Map<Long, Auction> catalogue = new LinkedHashMap<>();
+
+    // Replies received this round, by auction id and then by buyer: the
+    // buyer's bid, the round price if it accepted a price or REJECTED
+    private final Map<Long, Map<AID, Integer>> replyBuffers = new HashMap<>();
+
+    // The end of every auction's current round, by deadline
+    private final RoundScheduler rounds = new RoundScheduler();
+
+    // Auctions opened or moved to another round since the last announcement
+    private final Set<Auction> changed = new LinkedHashSet<>();
+
+    // The buyers and the titles they want
+    private final InterestIndex interests;
+
+    private final AuctionStats stats;
+    private final EventLog events;
+    private final Listener listener;
+
+    /**
+     * @param interests the buyers to announce the auctions to
+     * @param stats
+     * @param events
+     * @param listener
+     */
+    public AuctionEngine(InterestIndex interests, AuctionStats stats, EventLog events, Listener listener) {
+        this.interests = interests;
+        this.stats = stats;
+        this.events = events;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds an auction to the catalogue and schedules the end of its first
+     * round
+     *
+     * @param auction
+     * @param now current time in milliseconds
+     */
+    public void open(Auction auction, long now) {
+        if (catalogue.put(auction.getId(), auction) == null) {
+            stats.auctionOpened();
+        }
+        rounds.schedule(auction, now + auction.getRoundDuration());
+        markChanged(auction);
+    }
+
+    /**
+     * Removes an auction from the catalogue and the round schedule
+     *
+     * @param auction
+     */
+    public void close(Auction auction) {
+        if (catalogue.remove(auction.getId()) != null) {
+            stats.auctionRemoved();
+        }
+        changed.remove(auction);
+        replyBuffers.remove(auction.getId());
+        rounds.cancel(auction);
+    }
+
+    /**
+     * Buffers a buyer's reply until the auction's round is closed. Replies
+     * for another round or an auction no longer open are dropped. The last
+     * reply of a buyer in a round is the one that counts. An English reply
+     * with a bid above the price registers the buyer as proxy bidder.
+     *
+     * @param auctionId
+     * @param round the round the buyer replied to
+     * @param buyer
+     * @param accepted true if the buyer accepted the price or made a bid
+     * @param bid the buyer's sealed bid or proxy maximum
+     * @param now current time in milliseconds
+     * @return true if the round was brought forward to now: every buyer it
+     * was announced to has replied, or in a Dutch auction a buyer accepted
+     */
+    public boolean reply(long auctionId, int round, AID buyer, boolean accepted, int bid, long now) {
+        Auction auction = catalogue.get(auctionId);
+        if (auction == null || auction.getRound() != round) {
+            return false;
+        }
+        if (auction.getType() == AuctionType.ENGLISH && accepted && bid > auction.getCurrentPrice()) {
+            auction.setProxy(buyer, bid);
+        }
+        int value = !accepted ? REJECTED : auction.getType().isSealed() ? bid : auction.getCurrentPrice();
+        Map<AID, Integer> replies = replyBuffers.computeIfAbsent(auctionId, id -> new LinkedHashMap<>());
+        replies.put(buyer, value);
+        boolean decided = replies.size() >= interests.receiverCount(auction.getTitle())
+                || (auction.getType() == AuctionType.DUTCH && value != REJECTED);
+        if (decided && auction.getDeadline() > now) {
+            rounds.schedule(auction, now);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closes every round whose deadline has passed
+     *
+     * @param now current time in milliseconds
+     */
+    public void closeDue(long now) {
+        Auction auction = rounds.pollDue(now);
+        while (auction != null) {
+            closeRound(auction, now);
+            auction = rounds.pollDue(now);
+        }
+    }
+
+    /**
+     * @return the earliest round deadline, or Long.MAX_VALUE if none
+     */
+    public long nextDeadline() {
+        return rounds.nextDeadline();
+    }
+
+    /**
+     * Returns an auction none of its bidders bought to the catalogue, from
+     * its first round
+     *
+     * @param auction
+     * @param now current time in milliseconds
+     */
+    public void tradeFailed(Auction auction, long now) {
+        auction.resetAuction();
+        listener.reset(auction);
+        open(auction, now);
+    }
+
+    /**
+     * Applies a DF notification about a buyer
+     *
+     * @param dfd
+     * @return the open auctions the buyer did not receive until now: every
+     * auction for a buyer that started receiving every CFP, the auctions of
+     * its registered titles for a buyer that started targeting titles
+     */
+    public List<Auction> updateInterests(DFAgentDescription dfd) {
+        AID buyer = dfd.getName();
+        boolean wasUntargeted = interests.getUntargeted().contains(buyer);
+        boolean wasTargeting = interests.titles(buyer) != null;
+        interests.update(dfd);
+        if (catalogue.isEmpty() || wasUntargeted || !interests.getBuyers().contains(buyer)) {
+            return Collections.emptyList();
+        }
+        boolean untargeted = interests.getUntargeted().contains(buyer);
+        if (!untargeted && wasTargeting) {
+            return Collections.emptyList();
+        }
+        Set<String> titles = interests.titles(buyer);
+        List<Auction> missed = new ArrayList<>();
+        for (Auction auction : catalogue.values()) {
+            if (untargeted || titles.contains(auction.getTitle())) {
+                missed.add(auction);
+            }
+        }
+        return missed;
+    }
+
+    /**
+     * Adds titles a buyer targeting titles wants
+     *
+     * @param buyer
+     * @param titles
+     * @return the open auctions of the titles the buyer did not want until
+     * now
+     */
+    public List<Auction> addInterests(AID buyer, Collection<String> titles) {
+        Set<String> added = new HashSet<>();
+        for (String title : titles) {
+            if (interests.addTitle(buyer, title)) {
+                added.add(title);
+            }
+        }
+        if (catalogue.isEmpty() || added.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Auction> missed = new ArrayList<>();
+        for (Auction auction : catalogue.values()) {
+            if (added.contains(auction.getTitle())) {
+                missed.add(auction);
+            }
+        }
+        return missed;
+    }
+
+    /**
+     * Removes titles a buyer no longer wants
+     *
+     * @param buyer
+     * @param titles
+     */
+    public void removeInterests(AID buyer, Collection<String> titles) {
+        for (String title : titles) {
+            interests.removeTitle(buyer, title);
+        }
+    }
+
+    /**
+     * @return the auctions to announce, in the order they changed
+     */
+    public Collection<Auction> getChanged() {
+        return Collections.unmodifiableSet(changed);
+    }
+
+    /**
+     * Marks the changed auctions as announced
+     *
+     * @param now current time in milliseconds
+     */
+    public void announced(long now) {
+        for (Auction auction : changed) {
+            auction.setAnnouncedAt(now);
+        }
+        changed.clear();
+    }
+
+    /**
+     * @param auctionId
+     * @return the open auction, or null
+     */
+    public Auction get(long auctionId) {
+        return catalogue.get(auctionId);
+    }
+
+    /**
+     * @return the open auctions, in the order they entered the catalogue
+     */
+    public Collection<Auction> getCatalogue() {
+        return Collections.unmodifiableCollection(catalogue.values());
+    }
+
+    public InterestIndex getInterests() {
+        return interests;
+    }
+
+    /**
+     * Closes the current round of an auction: applies the replies buffered for
+     * it and then starts the trade, resets the auction or opens a new round.
+     *
+     * @param auction
+     * @param now current time in milliseconds
+     */
+    private void closeRound(Auction auction, long now) {
+        // Take the replies buffered for this auction
+        Map<AID, Integer> replies = replyBuffers.remove(auction.getId());
+        stats.roundClosed();
+        switch (auction.getType()) {
+            case DUTCH:
+                closeDutchRound(auction, replies, now);
+                break;
+            case SEALED_FIRST_PRICE:
+            case SEALED_SECOND_PRICE:
+                closeSealedRound(auction, replies, now);
+                break;
+            default:
+                closeEnglishRound(auction, replies, now);
+                break;
+        }
+    }
+
+    /**
+     * Ends a round of an English auction: the price goes up while more than
+     * one buyer accepts it. Proxy bidders accept every price up to their
+     * maximum, while they are the only bidders the rounds they would all
+     * accept are skipped.
+     *
+     * @param auction
+     * @param replies the round's replies, or null
+     * @param now
+     */
+    private void closeEnglishRound(Auction auction, Map<AID, Integer> replies, long now) {
+        //We clear this round's buyers and it gets saved in lastRoundBuyers array
+        auction.pushBuyersList();
+        if (replies != null) {
+            for (Map.Entry<AID, Integer> reply : replies.entrySet()) {
+                applyReply(auction, reply.getKey(), reply.getValue() != REJECTED);
+            }
+        }
+        boolean onlyProxies = applyProxies(auction);
+
+        // We need to check the list after reading every message
+        if (auction.getBuyers().isEmpty()) {
+            // If it's the first round, it means no one saw or wanted our offer, we dont go to the next round
+            if (auction.getRound() == 0) {
+                repeatRound(auction, now);
+                return;
+            }
+
+            // If people loose interest in a later round we could end up with a double empty array
+            if (auction.getLastRoundBuyers().isEmpty()) {
+                auction.resetAuction();
+                listener.reset(auction);
+                openRound(auction, now);
+                return;
+            }
+
+            // We remove the auction from the catalogue
+            close(auction);
+
+            // Start the trade with the last round bidders
+            listener.closed(Trade.english(auction, true));
+            return;
+        }
+
+        //If there is only one porposal the buyer wins the auction
+        if (auction.getBuyers().size() == 1) {
+            // We remove the auction from the catalogue
+            close(auction);
+
+            // Start the trade with this round's winner
+            listener.closed(Trade.english(auction, false));
+            return;
+        }
+
+        //***********************************   NEW ROUND BEHAVIOUR   ***********************************
+        if (onlyProxies) {
+            skipProxyRounds(auction);
+        }
+        nextRound(auction, now);
+
+        // Nobody but the proxies wants the title, the new round is settled
+        // right away without messages
+        if (onlyProxies && auction.getProxies().keySet().containsAll(interests.receivers(auction.getTitle()))) {
+            changed.remove(auction);
+            rounds.schedule(auction, now);
+        }
+    }
+
+    /**
+     * Bids for the proxy bidders whose maximum covers the current price,
+     * whatever they replied
+     *
+     * @param auction
+     * @return true if there are bidders and all of them are proxies
+     */
+    private boolean applyProxies(Auction auction) {
+        Map<AID, Integer> proxies = auction.getProxies();
+        int price = auction.getCurrentPrice();
+        for (Map.Entry<AID, Integer> proxy : proxies.entrySet()) {
+            if (proxy.getValue() >= price) {
+                auction.addBuyer(proxy.getKey());
+            }
+        }
+        if (auction.getBuyers().isEmpty()) {
+            return false;
+        }
+        for (AID buyer : auction.getBuyers()) {
+            if (!proxies.containsKey(buyer)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves an auction only proxies bid in to the last round in which at
+     * least two of them still bid, the next round has at most one
+     *
+     * @param auction
+     */
+    private void skipProxyRounds(Auction auction) {
+        Map<AID, Integer> proxies = auction.getProxies();
+        int first = Integer.MIN_VALUE, second = Integer.MIN_VALUE;
+        for (AID buyer : auction.getBuyers()) {
+            int max = proxies.get(buyer);
+            if (max > first) {
+                second = first;
+                first = max;
+            } else if (max > second) {
+                second = max;
+            }
+        }
+        int settled = auction.lastRoundWithin(second);
+        if (settled <= auction.getRound() || settled == Integer.MAX_VALUE) {
+            return;
+        }
+        int price = auction.priceAt(settled);
+        Set<AID> bidders = new LinkedHashSet<>();
+        for (AID buyer : auction.getBuyers()) {
+            if (proxies.get(buyer) >= price) {
+                bidders.add(buyer);
+            }
+        }
+        if (EventLog.isEnabled(Level.DEBUG)) {
+            events.log(Level.DEBUG, "proxy.settled", "auction", auction.getId(), "from", auction.getRound(), "to", settled, "price", price);
+        }
+        stats.roundsSkipped(settled - auction.getRound());
+        auction.skipToRound(settled, bidders);
+    }
+
+    /**
+     * Ends a round of a Dutch auction: the first buyers to accept win, if
+     * nobody did the price goes down
+     *
+     * @param auction
+     * @param replies the round's replies, or null
+     * @param now
+     */
+    private void closeDutchRound(Auction auction, Map<AID, Integer> replies, long now) {
+        auction.pushBuyersList();
+        if (replies != null) {
+            for (Map.Entry<AID, Integer> reply : replies.entrySet()) {
+                applyReply(auction, reply.getKey(), reply.getValue() != REJECTED);
+            }
+        }
+
+        // Accepted: sell at this round's price, in order of acceptance
+        if (!auction.getBuyers().isEmpty()) {
+            close(auction);
+            listener.closed(Trade.atCurrentPrice(auction, auction.getBuyers()));
+            return;
+        }
+
+        // Nobody to lower the price for yet
+        if (interests.receiverCount(auction.getTitle()) == 0) {
+            repeatRound(auction, now);
+            return;
+        }
+
+        // The price cannot go lower, we start again. Buyers that turned down
+        // every price reply at once, so the new descent waits a whole round
+        // instead of running again at message speed
+        if (!auction.canLowerPrice()) {
+            auction.resetAuction();
+            listener.reset(auction);
+            repeatRound(auction, now);
+            return;
+        }
+        nextRound(auction, now);
+    }
+
+    /**
+     * Ends the single round of a sealed-bid auction: the highest bid wins
+     *
+     * @param auction
+     * @param replies the bids, or null
+     * @param now
+     */
+    private void closeSealedRound(Auction auction, Map<AID, Integer> replies, long now) {
+        List<Map.Entry<AID, Integer>> bids = new ArrayList<>();
+        if (replies != null) {
+            for (Map.Entry<AID, Integer> reply : replies.entrySet()) {
+                if (reply.getValue() >= auction.getCurrentPrice()) {
+                    bids.add(reply);
+                }
+            }
+        }
+
+        // No bid over the reserve, the auction stays open for another round
+        if (bids.isEmpty()) {
+            repeatRound(auction, now);
+            return;
+        }
+        close(auction);
+        listener.closed(Trade.sealed(auction, bids));
+    }
+
+    /**
+     * Moves an auction to its next round and announces the new price
+     *
+     * @param auction
+     * @param now
+     */
+    private void nextRound(Auction auction, long now) {
+        // Increment round, the CFP is built when it is announced
+        auction.incrementRound();
+        listener.roundAdvanced(auction);
+        openRound(auction, now);
+        if (EventLog.isEnabled(Level.DEBUG)) {
+            events.log(Level.DEBUG, "round.opened", "auction", auction.getId(), "title", auction.getTitle(), "round", auction.getRound(), "price", auction.getCurrentPrice());
+        }
+    }
+
+    /**
+     * Schedules the end of an auction's new round and announces it
+     *
+     * @param auction
+     * @param now
+     */
+    private void openRound(Auction auction, long now) {
+        rounds.schedule(auction, now + auction.getRoundDuration());
+        markChanged(auction);
+    }
+
+    /**
+     * Keeps an auction open for another round at the same price. It is
+     * announced again so the buyers that passed can reconsider, but not
+     * before a whole round has gone by since the last announcement: a round
+     * every buyer passed on right away is repeated quietly.
+     *
+     * @param auction
+     * @param now
+     */
+    private void repeatRound(Auction auction, long now) {
+        rounds.schedule(auction, now + auction.getRoundDuration());
+        if (now - auction.getAnnouncedAt() >= auction.getRoundDuration()) {
+            markChanged(auction);
+        }
+    }
+
+    /**
+     * Queues an auction for the next announcement. Every change made in the
+     * same pass of the scheduler goes out together.
+     *
+     * @param auction
+     */
+    private void markChanged(Auction auction) {
+        changed.add(auction);
+        listener.changed();
+    }
+
+    /**
+     * Adds or removes a buyer from the auction's current round buyers
+     *
+     * @param auction
+     * @param buyer
+     * @param accepted true if the buyer accepted the current price
+     */
+    private static void applyReply(Auction auction, AID buyer, boolean accepted) {
+        if (accepted) {
+            auction.addBuyer(buyer);
+        } else {
+            auction.removeBuyer(buyer);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generator of auction ids: [node:10][counter:53]. The counter starts at the
+ * milliseconds since 2020 times 4096 when the class is loaded and is only
+ * incremented, so ids are consecutive, which keeps them spread in hashed
+ * collections. Time-stamped ids leave most of the 4096 values of each
+ * millisecond unused, and Long.hashCode folds them onto few buckets.
+ *
+ * Cross-run guarantee: without a journal, a run's ids are above every id of
+ * an earlier run on the same node as long as the earlier run created at most
+ * 4096 auctions per millisecond between its start and the later run's start,
+ * a million auctions take a quarter of a second of that. With a journal the
+ * replayed ids are observed, which covers faster runs and a clock going
+ * back. Nothing sets the node by default, so the ids of different JVMs may
+ * collide: buyers tell auctions apart by their seller and id, see
+ * AuctionKey, and a deployment that needs ids unique across JVMs gives each
+ * one its node with setNode before creating auctions.
+ *
+ * @author aculledor
+ */
+public final class AuctionIds {
+
+    public static final int NODE_BITS = 10;
+    public static final int COUNTER_BITS = 63 - NODE_BITS;
+    public static final int MAX_NODE = (1 << NODE_BITS) - 1;
+
+    private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+    // 2020-01-01T00:00:00Z
+    private static final long EPOCH = 1577836800000L;
+
+    private static final AtomicLong counter = new AtomicLong((System.currentTimeMillis() - EPOCH) << 12);
+    private static volatile int node = 0;
+
+    private AuctionIds() {
+    }
+
+    /**
+     * Sets the node bits of the ids generated from now on
+     * @param node between 0 and MAX_NODE
+     */
+    public static void setNode(int node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        AuctionIds.node = node;
+    }
+
+    /**
+     * @return a new id, whose counter is greater than the one of every id
+     * generated or observed before
+     */
+    public static long next() {
+        return ((long) node << COUNTER_BITS) | (counter.incrementAndGet() & COUNTER_MASK);
+    }
+
+    /**
+     * Makes the ids generated from now on greater than an id read back from
+     * a journal
+     * @param id
+     */
+    public static void observe(long id) {
+        long observed = id & COUNTER_MASK;
+        long previous = counter.get();
+        while (observed > previous && !counter.compareAndSet(previous, observed)) {
+            previous = counter.get();
+        }
+    }
+
+    /**
+     * @param id
+     * @return the node that generated the id
+     */
+    public static int nodeOf(long id) {
+        return (int) (id >>> COUNTER_BITS) & MAX_NODE;
+    }
+}
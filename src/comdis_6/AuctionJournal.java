@@ -0,0 +1,459 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import jade.core.AID;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped write-ahead journal of a seller's auction
+ * lifecycle: created, round advanced, bidder set, sold and reset.
+ *
+ * Appends only write to the mapped file; commit() forces them to disk, so a
+ * caller flushing on a timer groups every append since the last commit in a
+ * single sync. Each record is [length:4][crc32:4][type:1][payload] and a
+ * replay stops at the first zero length or bad checksum, so a torn tail is
+ * dropped.
+ *
+ * The journal lives in generations, name-N.journal. A generation starts with
+ * a snapshot of the live auctions closed by a CHECKPOINT record and is only
+ * valid once that record is on disk. When the records appended outgrow the
+ * live auctions the journal is compacted into the next generation, so a
+ * replay reads a number of records proportional to the live auctions, not
+ * to the full history. SOLD records are replayed into the seller's
+ * SalesRepository, which is synced to its spill file before a compaction
+ * drops them.
+ *
+ * @author aculledor
+ */
+public class AuctionJournal implements Closeable {
+
+    private static final int MAGIC = 0x4A524E4C;
+
+    private static final byte CREATED = 1;
+    private static final byte ROUND = 2;
+    private static final byte BIDDERS = 3;
+    private static final byte SOLD = 4;
+    private static final byte RESET = 5;
+    private static final byte CHECKPOINT = 6;
+
+    private static final int FILE_HEADER = 8;
+    private static final int RECORD_HEADER = 9;
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    // Compaction happens when there are this many records per live auction
+    private static final int COMPACTION_RATIO = 4;
+    private static final int COMPACTION_MIN_RECORDS = 10000;
+
+    private final File directory;
+    private final String name;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+    private int generation;
+    private File file;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private boolean dirty;
+    private long records;
+
+    // Auctions created and not sold, including the ones being traded
+    private final Map<Long, Auction> live = new LinkedHashMap<>();
+
+    // Where sold records are replayed, and what a compaction must flush
+    private final SalesRepository sales;
+
+    private AuctionJournal(File directory, String name, SalesRepository sales) {
+        this.directory = directory;
+        this.name = name;
+        this.sales = sales;
+    }
+
+    /**
+     * Opens the journal of a seller, replaying its last valid generation
+     *
+     * @param directory where the journal files are kept
+     * @param name the seller's local name
+     * @param sales the seller's sales, where the sold records not yet in its
+     * spill file are replayed
+     * @return the journal, whose getLive holds the replayed auctions
+     * @throws IOException
+     */
+    public static AuctionJournal open(File directory, String name, SalesRepository sales) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        AuctionJournal journal = new AuctionJournal(directory, name, sales);
+
+        // Newest valid generation first, a compaction may have died half way
+        List<Integer> generations = journal.generations();
+        int position = -1;
+        for (int i = generations.size() - 1; i >= 0 && position < 0; i--) {
+            journal.live.clear();
+            journal.records = 0;
+            journal.generation = generations.get(i);
+            position = journal.replay(journal.fileOf(journal.generation));
+        }
+
+        if (position < 0) {
+            journal.generation = generations.isEmpty() ? 0 : generations.get(generations.size() - 1) + 1;
+            journal.startGeneration();
+        } else {
+            journal.map(journal.fileOf(journal.generation), position);
+            if (journal.needsCompaction()) {
+                journal.compact();
+            }
+        }
+
+        // The sales replayed from the generations about to be deleted
+        sales.sync();
+        journal.deleteOtherGenerations();
+        return journal;
+    }
+
+    /**
+     * @return the auctions created and not sold, by id
+     */
+    public Map<Long, Auction> getLive() {
+        return Collections.unmodifiableMap(live);
+    }
+
+    public void created(Auction auction) throws IOException {
+        live.put(auction.getId(), auction);
+        writeCreated(auction);
+    }
+
+    /**
+     * Records a new round, together with the bidders of the round before
+     */
+    public void roundAdvanced(Auction auction) throws IOException {
+        writeBidders(auction);
+        writeRound(auction);
+    }
+
+    public void reset(Auction auction) throws IOException {
+        begin();
+        scratch.putLong(auction.getId());
+        append(RESET);
+    }
+
+    /**
+     * Records a sale already added to the sales repository
+     * @param sequence the sequence number the repository gave the sale
+     */
+    public void sold(Auction auction, long sequence, AID buyer, int price, long time) throws IOException {
+        live.remove(auction.getId());
+        byte[] buyerBytes = buyer.getName().getBytes(StandardCharsets.UTF_8);
+        begin();
+        ensureScratch(30 + buyerBytes.length);
+        scratch.putLong(auction.getId()).putLong(sequence).putInt(price).putLong(time);
+        scratch.putShort((short) buyerBytes.length).put(buyerBytes);
+        append(SOLD);
+    }
+
+    /**
+     * Forces the records appended since the last commit to disk, and compacts
+     * the journal if it has outgrown the live auctions
+     *
+     * @throws IOException
+     */
+    public void commit() throws IOException {
+        if (dirty) {
+            mapped.force();
+            dirty = false;
+        }
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        commit();
+        channel.close();
+    }
+
+    /**
+     * Rewrites the live auctions into the next generation and drops the old
+     * one. The sales it held are synced to the sales repository's file
+     * first, the old generation may be their only copy on disk.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        if (dirty) {
+            mapped.force();
+            dirty = false;
+        }
+        sales.sync();
+
+        FileChannel previous = channel;
+        generation++;
+        startGeneration();
+        previous.close();
+        deleteOtherGenerations();
+    }
+
+    // Writes the snapshot of the live auctions and the checkpoint of a new generation
+    private void startGeneration() throws IOException {
+        File next = fileOf(generation);
+        if (next.exists() && !next.delete()) {
+            throw new IOException("Cannot replace " + next);
+        }
+        map(next, -1);
+        records = 0;
+        for (Auction auction : live.values()) {
+            writeCreated(auction);
+            if (!auction.getLastRoundBuyers().isEmpty()) {
+                writeBidders(auction);
+            }
+            if (auction.getRound() > 0) {
+                writeRound(auction);
+            }
+        }
+        begin();
+        append(CHECKPOINT);
+        mapped.force();
+        dirty = false;
+    }
+
+    private boolean needsCompaction() {
+        return records > Math.max(COMPACTION_MIN_RECORDS, COMPACTION_RATIO * live.size());
+    }
+
+    private void writeCreated(Auction auction) throws IOException {
+        byte[] title = auction.getTitleBytes();
+        begin();
+        ensureScratch(23 + title.length);
+        scratch.putLong(auction.getId()).putInt(auction.getOriginalPrice())
+                .putInt(auction.getIncrement()).putInt(auction.getRoundDuration());
+        scratch.putShort((short) title.length).put(title);
+        scratch.put(auction.getType().getCode());
+        append(CREATED);
+    }
+
+    private void writeBidders(Auction auction) throws IOException {
+        begin();
+        scratch.putLong(auction.getId()).putInt(auction.getLastRoundBuyers().size());
+        for (AID bidder : auction.getLastRoundBuyers()) {
+            byte[] bidderBytes = bidder.getName().getBytes(StandardCharsets.UTF_8);
+            ensureScratch(2 + bidderBytes.length);
+            scratch.putShort((short) bidderBytes.length).put(bidderBytes);
+        }
+        append(BIDDERS);
+    }
+
+    private void writeRound(Auction auction) throws IOException {
+        begin();
+        scratch.putLong(auction.getId()).putInt(auction.getRound());
+        append(ROUND);
+    }
+
+    private void begin() {
+        scratch.clear();
+    }
+
+    private void ensureScratch(int bytes) {
+        if (scratch.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + bytes));
+            scratch.flip();
+            larger.put(scratch);
+            scratch = larger;
+        }
+    }
+
+    // Appends the record in the scratch buffer to the mapped file
+    private void append(byte type) throws IOException {
+        int length = scratch.position() + 1;
+        crc.reset();
+        crc.update(type);
+        crc.update(scratch.array(), 0, scratch.position());
+        // Keep room for the zero length that ends the journal
+        if (mapped.remaining() < RECORD_HEADER + length + 4) {
+            remap(mapped.position() + RECORD_HEADER + length + 4);
+        }
+        mapped.putInt(length).putInt((int) crc.getValue()).put(type);
+        mapped.put(scratch.array(), 0, scratch.position());
+        records++;
+        dirty = true;
+    }
+
+    // Maps the file for appending at position, or as a new file if position is negative
+    private void map(File target, int position) throws IOException {
+        file = target;
+        channel = new RandomAccessFile(target, "rw").getChannel();
+        long size = Math.max(INITIAL_SIZE, channel.size());
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if (position < 0) {
+            mapped.putInt(MAGIC).putInt(generation);
+        } else {
+            mapped.position(position);
+        }
+    }
+
+    private void remap(long needed) throws IOException {
+        int position = mapped.position();
+        mapped.force();
+        long size = Math.max(needed, 2L * mapped.capacity());
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Journal " + file + " is full");
+        }
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapped.position(position);
+    }
+
+    /**
+     * Replays a generation file into the live map and the sales repository
+     * @return the position after the last valid record, or -1 if the
+     * generation has no checkpoint
+     */
+    private int replay(File source) throws IOException {
+        boolean checkpoint = false;
+        int end;
+        try (FileChannel in = new RandomAccessFile(source, "r").getChannel()) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            if (buffer.remaining() < FILE_HEADER || buffer.getInt() != MAGIC || buffer.getInt() != generation) {
+                return -1;
+            }
+            end = buffer.position();
+            byte[] record = new byte[1024];
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                byte type = buffer.get();
+                if (record.length < length - 1) {
+                    record = new byte[Math.max(length - 1, record.length * 2)];
+                }
+                buffer.get(record, 0, length - 1);
+                crc.reset();
+                crc.update(type);
+                crc.update(record, 0, length - 1);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                checkpoint |= type == CHECKPOINT;
+                apply(type, ByteBuffer.wrap(record, 0, length - 1));
+                records++;
+                end = buffer.position();
+            }
+        }
+        return checkpoint ? end : -1;
+    }
+
+    private void apply(byte type, ByteBuffer record) throws IOException {
+        if (type == CHECKPOINT) {
+            return;
+        }
+        long id = record.getLong();
+        AuctionIds.observe(id);
+        Auction auction = live.get(id);
+        switch (type) {
+            case CREATED:
+                int price = record.getInt();
+                int increment = record.getInt();
+                int roundDuration = record.getInt();
+                String title = readString(record);
+                // Records written before auction types were added end at the title
+                AuctionType auctionType = record.hasRemaining() ? AuctionType.fromCode(record.get()) : AuctionType.ENGLISH;
+                live.put(id, new Auction(id, title, price, increment, roundDuration, auctionType));
+                break;
+            case BIDDERS:
+                if (auction != null) {
+                    Set<AID> bidders = new LinkedHashSet<>();
+                    for (int count = record.getInt(); count > 0; count--) {
+                        bidders.add(new AID(readString(record), AID.ISGUID));
+                    }
+                    auction.restoreLastRoundBuyers(bidders);
+                }
+                break;
+            case ROUND:
+                if (auction != null) {
+                    auction.restoreRound(record.getInt());
+                }
+                break;
+            case RESET:
+                if (auction != null) {
+                    auction.resetAuction();
+                }
+                break;
+            case SOLD:
+                long sequence = record.getLong();
+                int soldPrice = record.getInt();
+                long time = record.getLong();
+                String buyer = readString(record);
+                live.remove(id);
+                if (auction != null) {
+                    sales.restore(sequence, id, auction.getTitle(), buyer, soldPrice, time);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static String readString(ByteBuffer record) {
+        int length = record.getShort() & 0xFFFF;
+        String value = new String(record.array(), record.arrayOffset() + record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+
+    private File fileOf(int gen) {
+        return new File(directory, name + "-" + gen + ".journal");
+    }
+
+    private List<Integer> generations() {
+        List<Integer> generations = new ArrayList<>();
+        String[] files = directory.list();
+        if (files == null) {
+            return generations;
+        }
+        String prefix = name + "-";
+        for (String candidate : files) {
+            if (candidate.startsWith(prefix) && candidate.endsWith(".journal")) {
+                try {
+                    generations.add(Integer.parseInt(candidate.substring(prefix.length(), candidate.length() - ".journal".length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    // Old generations may still be mapped on some platforms, they are retried on the next open
+    private void deleteOtherGenerations() {
+        for (int gen : generations()) {
+            if (gen != generation) {
+                fileOf(gen).delete();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AuctionJournal{" + file + ", records=" + records + ", live=" + live.size() + "}";
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import jade.core.AID;
+
+/**
+ * An auction as a buyer knows it: the seller running it and its id. Auction
+ * ids are only unique among the sellers of a JVM, sellers in different
+ * containers may hand out the same one, so buyers never key an auction by
+ * its id alone.
+ *
+ * @author aculledor
+ */
+public final class AuctionKey {
+
+    private final AID seller;
+    private final long id;
+
+    // AID.hashCode lower-cases the name on every call, computed once
+    private final int hash;
+
+    public AuctionKey(AID seller, long id) {
+        this.seller = seller;
+        this.id = id;
+        this.hash = 31 * Long.hashCode(id) + (seller == null ? 0 : seller.hashCode());
+    }
+
+    public AID getSeller() {
+        return seller;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @param seller
+     * @param id
+     * @return true if this is the seller's auction with the id
+     */
+    public boolean is(AID seller, long id) {
+        return this.id == id && (this.seller == null ? seller == null : this.seller.equals(seller));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AuctionKey)) {
+            return false;
+        }
+        AuctionKey other = (AuctionKey) o;
+        return hash == other.hash && is(other.seller, other.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return (seller == null ? "?" : seller.getLocalName()) + "/" + id;
+    }
+}
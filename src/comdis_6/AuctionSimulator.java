@@ -0,0 +1,581 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import jade.core.AID;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Deterministic simulation of the seller/buyer auction loop on a virtual
+ * clock. The sellers run the same AuctionEngine as BookSellerAgent and the
+ * buyers the same BiddingStrategy, Wishlist and BuyerLedger as
+ * BookBuyerAgent, but without JADE: every message is an event delivered
+ * after a fixed latency, and the clock jumps from one event to the next, so
+ * a day of rounds takes as long as the CPU needs to decide them. Events of
+ * the same instant run in the order they were scheduled and every random
+ * choice comes from the seed, so two runs with the same options end with
+ * the same sales and the same outcome digest.
+ *
+ * Usage: java -cp jade.jar:build/classes comdis_6.AuctionSimulator
+ * [sellers=2] [auctions=1000] [spread=86400] [buyers=40] [titles=200]
+ * [wants=10] [restock=true] [duration=86400] [round=10000] [latency=5]
+ * [publish=1000] [seed=42] [budget=n] [strategy=cheapest|greedy]
+ * [proxy=false] [type=english|dutch|first-price|second-price|mixed]
+ * [log=warn]
+ *
+ * Times are virtual: spread and duration in seconds, round, latency and
+ * publish in milliseconds. The auctions of each seller are inserted at
+ * random times within the first spread seconds, and with restock every
+ * title a buyer buys is replaced in its wishlist by another one, so demand
+ * lasts the whole run.
+ *
+ * @author aculledor
+ */
+public class AuctionSimulator {
+
+    // Time a buyer holds a commitment without CFPs IN MILISECONDS, as in BookBuyerAgent
+    private static final int COMMITMENT_TIMEOUT = 30000;
+
+    /**
+     * Something that happens at a virtual time. Events of the same time run
+     * in the order they were scheduled.
+     */
+    private static final class Event {
+
+        private final long at, seq;
+        private final Runnable action;
+
+        private Event(long at, long seq, Runnable action) {
+            this.at = at;
+            this.seq = seq;
+            this.action = action;
+        }
+    }
+
+    private final PriorityQueue<Event> queue = new PriorityQueue<>((a, b) -> a.at != b.at ? Long.compare(a.at, b.at) : Long.compare(a.seq, b.seq));
+    private long seq;
+    private long events;
+
+    // The virtual clock IN MILISECONDS
+    private long now;
+
+    private final Random random;
+    private final AuctionStats stats = new AuctionStats();
+    private final Map<AID, Seller> sellers = new LinkedHashMap<>();
+    private final Map<AID, Buyer> buyers = new LinkedHashMap<>();
+
+    // Message latency and buyer interests publication period IN MILISECONDS
+    private final int latency, publishPeriod;
+    private final int titles;
+    private final boolean restock;
+
+    // Outcome of the run: every sale, in the order they were agreed
+    private long digest = 1125899906842597L;
+    private long revenue;
+
+    /**
+     * @param seed
+     * @param latency one-way message latency in milliseconds
+     * @param publishPeriod time a buyer takes to send the changes of its titles in
+     * milliseconds
+     * @param titles number of distinct titles
+     * @param restock true to replace every bought title with another
+     */
+    public AuctionSimulator(long seed, int latency, int publishPeriod, int titles, boolean restock) {
+        this.random = new Random(seed);
+        this.latency = latency;
+        this.publishPeriod = publishPeriod;
+        this.titles = titles;
+        this.restock = restock;
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        int sellers = Integer.parseInt(options.getOrDefault("sellers", "2"));
+        int auctions = Integer.parseInt(options.getOrDefault("auctions", "1000"));
+        int spread = Integer.parseInt(options.getOrDefault("spread", "86400"));
+        int buyers = Integer.parseInt(options.getOrDefault("buyers", "40"));
+        int titles = Integer.parseInt(options.getOrDefault("titles", "200"));
+        int wants = Integer.parseInt(options.getOrDefault("wants", "10"));
+        boolean restock = Boolean.parseBoolean(options.getOrDefault("restock", "true"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "86400"));
+        int round = Integer.parseInt(options.getOrDefault("round", String.valueOf(Auction.DEFAULT_ROUND_DURATION)));
+        int latency = Integer.parseInt(options.getOrDefault("latency", "5"));
+        int publish = Integer.parseInt(options.getOrDefault("publish", "1000"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        long budget = options.containsKey("budget") ? Long.parseLong(options.get("budget")) : BuyerLedger.UNLIMITED;
+        String strategy = options.getOrDefault("strategy", "cheapest");
+        boolean proxy = Boolean.parseBoolean(options.getOrDefault("proxy", "false"));
+        String typeLabel = options.getOrDefault("type", "english");
+        AuctionType type = AuctionType.parse(typeLabel);
+        if (type == null && !"mixed".equalsIgnoreCase(typeLabel)) {
+            throw new IllegalArgumentException("Unknown auction type " + typeLabel);
+        }
+        EventLog.setLevel(EventLog.parseLevel(options.get("log"), EventLog.Level.WARN));
+
+        AuctionSimulator simulator = new AuctionSimulator(seed, latency, publish, titles, restock);
+        for (int i = 0; i < sellers; i++) {
+            simulator.addSeller("seller-" + i);
+        }
+        for (int i = 0; i < buyers; i++) {
+            BiddingStrategy buyerStrategy = "greedy".equals(strategy) ? new GreedyStrategy(proxy) : new CheapestOfferStrategy(proxy);
+            simulator.addBuyer("buyer-" + i, wants, new BuyerLedger(budget, COMMITMENT_TIMEOUT), buyerStrategy);
+        }
+        simulator.addAuctions(auctions, spread * 1000L, round, type);
+
+        long start = System.nanoTime();
+        simulator.run(duration * 1000L);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("sellers=" + sellers + " auctions/seller=" + auctions + " spread=" + spread + "s buyers=" + buyers
+                + " titles=" + titles + " wants/buyer=" + wants + (restock ? " restock" : "") + " duration=" + duration
+                + "s round=" + round + "ms latency=" + latency + "ms seed=" + seed + " type=" + typeLabel
+                + " strategy=" + strategy + (proxy ? " proxy" : "") + (options.containsKey("budget") ? " budget=" + budget : ""));
+        simulator.report(elapsed);
+    }
+
+    /**
+     * Schedules an event
+     *
+     * @param at virtual time in milliseconds, not before now
+     * @param action
+     */
+    private void at(long at, Runnable action) {
+        queue.add(new Event(Math.max(at, now), seq++, action));
+    }
+
+    /**
+     * Runs the events up to a virtual time
+     *
+     * @param end virtual time in milliseconds
+     */
+    public void run(long end) {
+        Event event = queue.peek();
+        while (event != null && event.at <= end) {
+            queue.poll();
+            now = event.at;
+            event.action.run();
+            events++;
+            event = queue.peek();
+        }
+        now = Math.max(now, end);
+    }
+
+    /**
+     * Adds a seller with an empty catalogue, aware of the buyers added so far
+     *
+     * @param name
+     */
+    public void addSeller(String name) {
+        Seller seller = new Seller(name);
+        sellers.put(seller.aid, seller);
+        for (Buyer buyer : buyers.values()) {
+            seller.engine.updateInterests(buyer.describe());
+        }
+    }
+
+    /**
+     * Adds a buyer wanting random titles at random prices and publishes its
+     * titles to the sellers
+     *
+     * @param name
+     * @param wants number of titles
+     * @param ledger
+     * @param strategy
+     */
+    public void addBuyer(String name, int wants, BuyerLedger ledger, BiddingStrategy strategy) {
+        Buyer buyer = new Buyer(name, ledger, strategy);
+        for (int j = 0; j < wants; j++) {
+            buyer.wishlist.put("book" + random.nextInt(titles), 20 + random.nextInt(80));
+        }
+        buyers.put(buyer.aid, buyer);
+        DFAgentDescription dfd = buyer.describe();
+        for (Seller seller : sellers.values()) {
+            seller.engine.updateInterests(dfd);
+        }
+    }
+
+    /**
+     * Schedules the insertion of every seller's auctions at random times.
+     * The ids are numbered from 1 so they are the same on every run.
+     *
+     * @param count auctions per seller
+     * @param spread the auctions are inserted within the first spread
+     * milliseconds
+     * @param round round duration in milliseconds
+     * @param type the auctions' type, or null for a random one each
+     */
+    public void addAuctions(int count, long spread, int round, AuctionType type) {
+        long id = 0;
+        for (Seller seller : sellers.values()) {
+            for (int j = 0; j < count; j++) {
+                AuctionType auctionType = type != null ? type : AuctionType.values()[random.nextInt(AuctionType.values().length)];
+                // Dutch auctions open above the buyers' maximum prices and come down
+                int price = 10 + random.nextInt(40) + (auctionType == AuctionType.DUTCH ? 60 : 0);
+                Auction auction = new Auction(++id, "book" + random.nextInt(titles), price, 1 + random.nextInt(5), round, auctionType);
+                long insertAt = spread > 0 ? (long) (random.nextDouble() * spread) : 0;
+                at(insertAt, () -> {
+                    seller.engine.open(auction.markInserted(now * 1_000_000L), now);
+                    seller.reschedule();
+                });
+            }
+        }
+    }
+
+    /**
+     * Prints the counters and the outcome digest of the run
+     *
+     * @param elapsed wall time of the run in seconds
+     */
+    public void report(double elapsed) {
+        double virtual = now / 1000.0;
+        System.out.printf("virtual time        : %.0f s in %.2f s of wall time (%.0fx)%n", virtual, elapsed, virtual / Math.max(elapsed, 1e-9));
+        System.out.printf("events processed    : %d (%.0f/s)%n", events, events / Math.max(elapsed, 1e-9));
+        System.out.printf("auctions closed     : %d (%d open, revenue %d)%n", stats.getAuctionsClosed(), stats.getCatalogueSize(), revenue);
+        System.out.printf("trades failed       : %d%n", stats.getTradesFailed());
+        System.out.printf("trade refusals      : %d%n", stats.getTradesRefused());
+        System.out.printf("CFP deliveries      : %d (%d messages)%n", stats.getCfpDeliveries(), stats.getCfpMessages());
+        System.out.printf("rounds per sale     : %.2f (%d rounds closed, %d skipped)%n",
+                stats.perSale(stats.getSoldRounds()), stats.getRoundsClosed(), stats.getRoundsSkipped());
+        System.out.printf("offers per sale     : %.1f announced, %.1f answered%n",
+                stats.perSale(stats.getOffersAnnounced()), stats.perSale(stats.getOffersAnswered()));
+        System.out.printf("messages per sale   : %.1f (CFP deliveries and replies)%n",
+                stats.perSale(stats.getCfpDeliveries() + stats.getReplyMessages()));
+        System.out.printf("insertion->trade p50: %.1f ms (virtual)%n", stats.getLatencyPercentile(50));
+        System.out.printf("insertion->trade p99: %.1f ms (virtual)%n", stats.getLatencyPercentile(99));
+        System.out.printf("buyer CFPs/batch    : %.2f (decide p99 %.3f ms)%n", stats.getCfpsPerBatch(), stats.getDecideLatencyP99());
+        System.out.printf("outcome digest      : %016x%n", digest);
+    }
+
+    /**
+     * @return the hash of every sale so far: auction, buyer, round, price and
+     * time, in order
+     */
+    public long getDigest() {
+        return digest;
+    }
+
+    public AuctionStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Inner class Seller. A seller's AuctionEngine and the messages it would
+     * send: announcements, purchase orders, and the wake-ups at its round
+     * deadlines.
+     */
+    private class Seller implements AuctionEngine.Listener {
+
+        private final AID aid;
+        private final InterestIndex interests = new InterestIndex();
+        private final AuctionEngine engine;
+
+        // An announcement is scheduled for the current instant
+        private boolean announcing;
+
+        // Time of the earliest wake-up scheduled
+        private long wakeAt = Long.MAX_VALUE;
+
+        private Seller(String name) {
+            aid = new AID(name + "@sim", AID.ISGUID);
+            engine = new AuctionEngine(interests, stats, EventLog.get(name), this);
+        }
+
+        @Override
+        public void changed() {
+            if (!announcing) {
+                announcing = true;
+                at(now, this::announce);
+            }
+        }
+
+        @Override
+        public void roundAdvanced(Auction auction) {
+            // Nothing to journal
+        }
+
+        @Override
+        public void reset(Auction auction) {
+            // Nothing to journal
+        }
+
+        @Override
+        public void closed(Trade trade) {
+            sendOrder(trade);
+        }
+
+        // Announces every auction changed in this instant, one CFP each
+        private void announce() {
+            announcing = false;
+            for (Auction auction : engine.getChanged()) {
+                sendCfp(auction, interests.receivers(auction.getTitle()));
+            }
+            engine.announced(now);
+        }
+
+        /**
+         * Delivers the auction's current round to the receivers after the
+         * latency
+         *
+         * @param auction
+         * @param receivers
+         */
+        private void sendCfp(Auction auction, Collection<AID> receivers) {
+            if (receivers.isEmpty()) {
+                return;
+            }
+            stats.cfpSent(receivers.size(), 1);
+            AID[] to = receivers.toArray(new AID[receivers.size()]);
+            long id = auction.getId();
+            int round = auction.getRound(), price = auction.getCurrentPrice();
+            AuctionType type = auction.getType();
+            String title = auction.getTitle();
+            at(now + latency, () -> {
+                for (AID buyer : to) {
+                    BiddingStrategy.Offer offer = new BiddingStrategy.Offer();
+                    offer.auctionId = id;
+                    offer.round = round;
+                    offer.price = price;
+                    offer.auctionType = type;
+                    offer.title = title;
+                    offer.seller = aid;
+                    buyers.get(buyer).receive(offer);
+                }
+            });
+        }
+
+        /**
+         * Announces to a buyer the auctions it did not receive until its
+         * latest titles
+         *
+         * @param buyer
+         * @param missed
+         */
+        private void catchUp(AID buyer, List<Auction> missed) {
+            for (Auction auction : missed) {
+                sendCfp(auction, Collections.singleton(buyer));
+            }
+        }
+
+        /**
+         * Buffers the replies of a buyer
+         *
+         * @param buyer
+         * @param offers the buyer's decisions
+         */
+        private void receiveReplies(AID buyer, List<BiddingStrategy.Offer> offers) {
+            stats.offerReplyReceived(offers.size());
+            for (BiddingStrategy.Offer offer : offers) {
+                engine.reply(offer.auctionId, offer.round, buyer, offer.accept, offer.bid, now);
+            }
+            reschedule();
+        }
+
+        // Sends the purchase order to the next bidder, or returns the auction to the catalogue
+        private void sendOrder(Trade trade) {
+            if (trade.next >= trade.candidates.size()) {
+                stats.tradeFailed();
+                engine.tradeFailed(trade.auction, now);
+                reschedule();
+                return;
+            }
+            Buyer buyer = buyers.get(trade.candidates.get(trade.next++));
+            int price = trade.price(), round = trade.round();
+            trade.sentAt = now;
+            stats.tradeStarted();
+            at(now + latency, () -> buyer.order(this, trade, price, round));
+        }
+
+        /**
+         * Ends a purchase order: the sale is recorded, or the next bidder is
+         * tried
+         *
+         * @param trade
+         * @param buyer
+         * @param agreed
+         */
+        private void answered(Trade trade, Buyer buyer, boolean agreed) {
+            stats.tradeAnswered((now - trade.sentAt) * 1_000_000L);
+            if (!agreed) {
+                stats.tradeRefused();
+                sendOrder(trade);
+                return;
+            }
+            stats.auctionClosed(trade.auction, now * 1_000_000L);
+            revenue += trade.price();
+            digest = 31 * digest + trade.auction.getId();
+            digest = 31 * digest + buyer.aid.getName().hashCode();
+            digest = 31 * digest + trade.round();
+            digest = 31 * digest + trade.price();
+            digest = 31 * digest + now;
+        }
+
+        // Closes the rounds due now and schedules the next wake-up
+        private void wake() {
+            if (now >= wakeAt) {
+                wakeAt = Long.MAX_VALUE;
+            }
+            engine.closeDue(now);
+            reschedule();
+        }
+
+        // Schedules a wake-up at the earliest deadline unless one is already sooner
+        private void reschedule() {
+            long next = engine.nextDeadline();
+            if (next < wakeAt) {
+                wakeAt = next;
+                at(next, this::wake);
+            }
+        }
+    }  // End of inner class Seller
+
+    /**
+     * Inner class Buyer. A buyer's wishlist, ledger and strategy. The CFPs
+     * delivered in the same instant are decided together, as a
+     * BookBuyerAgent decides the CFPs queued in one activation.
+     */
+    private class Buyer {
+
+        private final AID aid;
+        private final Wishlist wishlist = new Wishlist();
+        private final BuyerLedger ledger;
+        private final BiddingStrategy strategy;
+
+        // Offers delivered and not decided yet
+        private final List<BiddingStrategy.Offer> inbox = new ArrayList<>();
+
+        // The titles started (true) or stopped (false) wanting since the
+        // last publication
+        private final Map<String, Boolean> changed = new LinkedHashMap<>();
+
+        // An activation or a publication of the titles is scheduled
+        private boolean activating, publishing;
+
+        private Buyer(String name, BuyerLedger ledger, BiddingStrategy strategy) {
+            this.aid = new AID(name + "@sim", AID.ISGUID);
+            this.ledger = ledger;
+            this.strategy = strategy;
+        }
+
+        /**
+         * @return the buyer's book-buying service with its titles, as the
+         * DF would notify it
+         */
+        private DFAgentDescription describe() {
+            DFAgentDescription dfd = new DFAgentDescription();
+            dfd.setName(aid);
+            ServiceDescription service = new ServiceDescription();
+            service.setType("book-buying");
+            service.setName(aid.getLocalName());
+            InterestIndex.publish(service, wishlist.toMap().keySet());
+            dfd.addServices(service);
+            return dfd;
+        }
+
+        private void receive(BiddingStrategy.Offer offer) {
+            offer.maxPrice = wishlist.maxPrice(offer.title);
+            inbox.add(offer);
+            if (!activating) {
+                activating = true;
+                at(now, this::activate);
+            }
+        }
+
+        // Decides the offers received and replies to each seller once
+        private void activate() {
+            activating = false;
+            long start = System.nanoTime();
+            ledger.expire(now);
+            strategy.decide(inbox, ledger, now);
+            stats.cfpBatchDecided(inbox.size(), 0, System.nanoTime() - start);
+
+            Map<Seller, List<BiddingStrategy.Offer>> replies = new LinkedHashMap<>();
+            for (BiddingStrategy.Offer offer : inbox) {
+                replies.computeIfAbsent(sellers.get(offer.seller), s -> new ArrayList<>()).add(offer);
+            }
+            inbox.clear();
+            for (Map.Entry<Seller, List<BiddingStrategy.Offer>> reply : replies.entrySet()) {
+                Seller seller = reply.getKey();
+                List<BiddingStrategy.Offer> offers = reply.getValue();
+                at(now + latency, () -> seller.receiveReplies(aid, offers));
+            }
+        }
+
+        /**
+         * Answers a purchase order
+         *
+         * @param seller
+         * @param trade
+         * @param price
+         * @param round
+         */
+        private void order(Seller seller, Trade trade, int price, int round) {
+            BiddingStrategy.Offer order = new BiddingStrategy.Offer();
+            order.auctionId = trade.auction.getId();
+            order.round = round;
+            order.price = price;
+            order.auctionType = trade.auction.getType();
+            order.title = trade.auction.getTitle();
+            order.seller = seller.aid;
+            order.maxPrice = wishlist.maxPrice(order.title);
+            boolean agreed = strategy.acceptTrade(order, ledger);
+            if (agreed) {
+                ledger.bought(order.seller, order.auctionId, order.title, order.price);
+                if (wishlist.remove(order.title)) {
+                    changed.put(order.title, false);
+                }
+                if (restock) {
+                    String title = "book" + random.nextInt(titles);
+                    if (wishlist.maxPrice(title) == Wishlist.NOT_WANTED) {
+                        changed.put(title, true);
+                    }
+                    wishlist.put(title, 20 + random.nextInt(80));
+                }
+                if (!changed.isEmpty() && !publishing) {
+                    publishing = true;
+                    at(now + publishPeriod, this::publish);
+                }
+            }
+            at(now + latency, () -> seller.answered(trade, this, agreed));
+        }
+
+        // Sends the changes of the titles to every seller, which announce the new ones
+        private void publish() {
+            publishing = false;
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (Map.Entry<String, Boolean> change : changed.entrySet()) {
+                if (change.getValue()) {
+                    added.add(change.getKey());
+                } else {
+                    removed.add(change.getKey());
+                }
+            }
+            changed.clear();
+            for (Seller seller : sellers.values()) {
+                seller.engine.removeInterests(aid, removed);
+                seller.catchUp(aid, seller.engine.addInterests(aid, added));
+            }
+        }
+    }  // End of inner class Buyer
+}
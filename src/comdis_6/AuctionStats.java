@@ -0,0 +1,507 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters of the auction engine. Every seller and buyer reports into one:
+ * agents started by AuctionBenchmark share the benchmark's, the others
+ * create their own and register it over JMX as
+ * comdis_6:type=AuctionStats,name=(agent). Counters are LongAdders and
+ * latencies go to LatencyHistograms, so the agents' hot paths never lock;
+ * a snapshot of every value can also be written to a file periodically.
+ *
+ * @author aculledor
+ */
+public class AuctionStats implements AuctionStatsMXBean {
+
+    private final LongAdder cfpMessages = new LongAdder();
+    private final LongAdder cfpDeliveries = new LongAdder();
+    private final LongAdder offersAnnounced = new LongAdder();
+    private final LongAdder replyMessages = new LongAdder();
+    private final LongAdder offersAnswered = new LongAdder();
+    private final LongAdder soldRounds = new LongAdder();
+    private final LongAdder roundsClosed = new LongAdder();
+    private final LongAdder roundsSkipped = new LongAdder();
+    private final LongAdder auctionsOpened = new LongAdder();
+    private final LongAdder catalogueSize = new LongAdder();
+    private final LongAdder auctionsClosed = new LongAdder();
+    private final LongAdder tradesFailed = new LongAdder();
+    private final LongAdder tradesRefused = new LongAdder();
+    private final LongAdder tradeTimeouts = new LongAdder();
+    private final LongAdder tradesInFlight = new LongAdder();
+    private final AtomicLong maxTradesInFlight = new AtomicLong();
+    private final LongAdder cfpBatches = new LongAdder();
+    private final LongAdder cfpsDecided = new LongAdder();
+    private final AtomicLong maxBuyerQueue = new AtomicLong();
+    private final AtomicLong maxSellerQueue = new AtomicLong();
+
+    // Insertion to trade latencies
+    private final LatencyHistogram saleLatencies = new LatencyHistogram();
+
+    // Purchase order to buyer reply latencies
+    private final LatencyHistogram tradeLatencies = new LatencyHistogram();
+
+    // Time a buyer takes to decide a batch of CFPs
+    private final LatencyHistogram decideLatencies = new LatencyHistogram();
+
+    // Snapshot values that only grow, written with their rate per second
+    private static final Set<String> COUNTERS = new HashSet<>(Arrays.asList(
+            "cfpMessages", "cfpDeliveries", "offersAnnounced", "replyMessages", "offersAnswered", "auctionsOpened",
+            "roundsClosed", "roundsSkipped", "auctionsClosed", "soldRounds", "tradesFailed", "tradesRefused", "tradeTimeouts"));
+
+    private ObjectName objectName;
+    private ScheduledExecutorService snapshots;
+
+    /**
+     * Called by a seller every time it sends a CFP
+     * @param receivers number of buyers the CFP was addressed to
+     * @param offers number of auctions listed in the CFP
+     */
+    public void cfpSent(int receivers, int offers) {
+        cfpMessages.increment();
+        cfpDeliveries.add(receivers);
+        offersAnnounced.add((long) receivers * offers);
+    }
+
+    /**
+     * Called by a seller for every offer reply it receives
+     * @param records number of auctions answered in the reply
+     */
+    public void offerReplyReceived(int records) {
+        replyMessages.increment();
+        offersAnswered.add(records);
+    }
+
+    /**
+     * Called by a seller when an auction enters its catalogue
+     */
+    public void auctionOpened() {
+        auctionsOpened.increment();
+        catalogueSize.increment();
+    }
+
+    /**
+     * Called by a seller when an auction leaves its catalogue to be traded
+     */
+    public void auctionRemoved() {
+        catalogueSize.decrement();
+    }
+
+    /**
+     * Called by a seller every time an auction round ends
+     */
+    public void roundClosed() {
+        roundsClosed.increment();
+    }
+
+    /**
+     * Called by a seller when it settles rounds between proxy bidders
+     * without announcing them
+     * @param rounds number of rounds skipped
+     */
+    public void roundsSkipped(int rounds) {
+        roundsSkipped.add(rounds);
+    }
+
+    /**
+     * Called by a seller when a buyer agrees to buy an auctioned book
+     * @param auction the sold auction
+     */
+    public void auctionClosed(Auction auction) {
+        auctionClosed(auction, System.nanoTime());
+    }
+
+    /**
+     * Called when an auction is sold on another clock than System.nanoTime
+     * @param auction the sold auction, marked inserted on the same clock
+     * @param now time of the sale in nanoseconds
+     */
+    public void auctionClosed(Auction auction, long now) {
+        auctionsClosed.increment();
+        soldRounds.add(auction.getRound() + 1);
+        saleLatencies.record(now - auction.getInsertedAt());
+    }
+
+    /**
+     * Called by a seller when the last bidder of an auction refuses or does
+     * not answer and the auction goes back to the catalogue
+     */
+    public void tradeFailed() {
+        tradesFailed.increment();
+    }
+
+    /**
+     * Called by a seller when a buyer refuses a purchase order
+     */
+    public void tradeRefused() {
+        tradesRefused.increment();
+    }
+
+    /**
+     * Called by a seller when it sends a purchase order
+     */
+    public void tradeStarted() {
+        tradesInFlight.increment();
+        raise(maxTradesInFlight, tradesInFlight.sum());
+    }
+
+    /**
+     * Called by a seller when a purchase order is answered
+     * @param latency time from the order to the answer in nanoseconds
+     */
+    public void tradeAnswered(long latency) {
+        tradesInFlight.decrement();
+        tradeLatencies.record(latency);
+    }
+
+    /**
+     * Called by a seller when a purchase order is not answered in time
+     */
+    public void tradeTimedOut() {
+        tradesInFlight.decrement();
+        tradeTimeouts.increment();
+    }
+
+    /**
+     * Called by a seller every time it drains its offer replies
+     * @param queueDepth messages waiting in the seller's queue
+     */
+    public void sellerQueueSampled(int queueDepth) {
+        raise(maxSellerQueue, queueDepth);
+    }
+
+    /**
+     * Called by a buyer after every activation deciding CFPs
+     * @param decided number of CFPs decided in the activation
+     * @param queueDepth messages still waiting in the buyer's queue
+     * @param latency time taken to decide them in nanoseconds
+     */
+    public void cfpBatchDecided(int decided, int queueDepth, long latency) {
+        cfpBatches.increment();
+        cfpsDecided.add(decided);
+        raise(maxBuyerQueue, queueDepth);
+        decideLatencies.record(latency);
+    }
+
+    private static void raise(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    @Override
+    public long getCfpMessages() {
+        return cfpMessages.sum();
+    }
+
+    @Override
+    public long getCfpDeliveries() {
+        return cfpDeliveries.sum();
+    }
+
+    @Override
+    public long getOffersAnnounced() {
+        return offersAnnounced.sum();
+    }
+
+    @Override
+    public long getReplyMessages() {
+        return replyMessages.sum();
+    }
+
+    @Override
+    public long getOffersAnswered() {
+        return offersAnswered.sum();
+    }
+
+    @Override
+    public long getSoldRounds() {
+        return soldRounds.sum();
+    }
+
+    @Override
+    public long getRoundsClosed() {
+        return roundsClosed.sum();
+    }
+
+    @Override
+    public long getRoundsSkipped() {
+        return roundsSkipped.sum();
+    }
+
+    @Override
+    public long getAuctionsOpened() {
+        return auctionsOpened.sum();
+    }
+
+    @Override
+    public long getCatalogueSize() {
+        return catalogueSize.sum();
+    }
+
+    /**
+     * @param total a counter of the run
+     * @return the counter divided by the auctions sold, or 0 if none
+     */
+    public double perSale(long total) {
+        long closed = auctionsClosed.sum();
+        return closed == 0 ? 0 : (double) total / closed;
+    }
+
+    @Override
+    public long getAuctionsClosed() {
+        return auctionsClosed.sum();
+    }
+
+    @Override
+    public long getTradesFailed() {
+        return tradesFailed.sum();
+    }
+
+    @Override
+    public long getTradesRefused() {
+        return tradesRefused.sum();
+    }
+
+    @Override
+    public long getTradeTimeouts() {
+        return tradeTimeouts.sum();
+    }
+
+    @Override
+    public long getTradesInFlight() {
+        return tradesInFlight.sum();
+    }
+
+    @Override
+    public long getMaxTradesInFlight() {
+        return maxTradesInFlight.get();
+    }
+
+    @Override
+    public double getCfpsPerBatch() {
+        long batches = cfpBatches.sum();
+        return batches == 0 ? 0 : (double) cfpsDecided.sum() / batches;
+    }
+
+    @Override
+    public long getMaxBuyerQueue() {
+        return maxBuyerQueue.get();
+    }
+
+    @Override
+    public long getMaxSellerQueue() {
+        return maxSellerQueue.get();
+    }
+
+    /**
+     * Insertion to trade latency percentile
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds, or -1 if nothing was sold
+     */
+    public double getLatencyPercentile(double percentile) {
+        return millis(saleLatencies.percentile(percentile));
+    }
+
+    /**
+     * Purchase order to buyer reply latency percentile
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds, or -1 if no order was answered
+     */
+    public double getTradeLatencyPercentile(double percentile) {
+        return millis(tradeLatencies.percentile(percentile));
+    }
+
+    /**
+     * Buyer CFP batch decision latency percentile
+     * @param percentile between 0 and 100
+     * @return the latency in milliseconds, or -1 if no batch was decided
+     */
+    public double getDecideLatencyPercentile(double percentile) {
+        return millis(decideLatencies.percentile(percentile));
+    }
+
+    @Override
+    public double getSaleLatencyP50() {
+        return getLatencyPercentile(50);
+    }
+
+    @Override
+    public double getSaleLatencyP99() {
+        return getLatencyPercentile(99);
+    }
+
+    @Override
+    public double getTradeLatencyP50() {
+        return getTradeLatencyPercentile(50);
+    }
+
+    @Override
+    public double getTradeLatencyP99() {
+        return getTradeLatencyPercentile(99);
+    }
+
+    @Override
+    public double getDecideLatencyP99() {
+        return getDecideLatencyPercentile(99);
+    }
+
+    private static double millis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1_000_000.0;
+    }
+
+    /**
+     * @return every counter and latency by name, in a stable order
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("cfpMessages", getCfpMessages());
+        values.put("cfpDeliveries", getCfpDeliveries());
+        values.put("offersAnnounced", getOffersAnnounced());
+        values.put("replyMessages", getReplyMessages());
+        values.put("offersAnswered", getOffersAnswered());
+        values.put("auctionsOpened", getAuctionsOpened());
+        values.put("catalogueSize", getCatalogueSize());
+        values.put("roundsClosed", getRoundsClosed());
+        values.put("roundsSkipped", getRoundsSkipped());
+        values.put("auctionsClosed", getAuctionsClosed());
+        values.put("soldRounds", getSoldRounds());
+        values.put("tradesFailed", getTradesFailed());
+        values.put("tradesRefused", getTradesRefused());
+        values.put("tradeTimeouts", getTradeTimeouts());
+        values.put("tradesInFlight", getTradesInFlight());
+        values.put("maxTradesInFlight", getMaxTradesInFlight());
+        values.put("cfpsPerBatch", getCfpsPerBatch());
+        values.put("maxBuyerQueue", getMaxBuyerQueue());
+        values.put("maxSellerQueue", getMaxSellerQueue());
+        values.put("saleLatencyP50Ms", getSaleLatencyP50());
+        values.put("saleLatencyP99Ms", getSaleLatencyP99());
+        values.put("saleLatencyMaxMs", millis(saleLatencies.getMax()));
+        values.put("tradeLatencyP50Ms", getTradeLatencyP50());
+        values.put("tradeLatencyP99Ms", getTradeLatencyP99());
+        values.put("tradeLatencyMaxMs", millis(tradeLatencies.getMax()));
+        values.put("decideLatencyP50Ms", getDecideLatencyPercentile(50));
+        values.put("decideLatencyP99Ms", getDecideLatencyP99());
+        return values;
+    }
+
+    /**
+     * Registers the counters with the platform MBean server
+     *
+     * @param name the name key of the ObjectName, e.g. the agent's local name
+     * @return true if registered
+     */
+    public synchronized boolean register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName candidate = new ObjectName("comdis_6:type=AuctionStats,name=" + ObjectName.quote(name));
+            if (server.isRegistered(candidate)) {
+                server.unregisterMBean(candidate);
+            }
+            server.registerMBean(this, candidate);
+            objectName = candidate;
+            return true;
+        } catch (JMException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Writes a snapshot to the file every period, replacing it atomically,
+     * with the rates of the counters since the previous one
+     *
+     * @param file
+     * @param period IN MILISECONDS
+     */
+    public synchronized void startSnapshots(File file, long period) {
+        if (snapshots != null) {
+            return;
+        }
+        snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "auction-stats-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, Object> previous = new LinkedHashMap<>();
+        long[] previousTime = {System.nanoTime()};
+        snapshots.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            Map<String, Object> values = snapshot();
+            try {
+                writeSnapshot(file, values, previous, (now - previousTime[0]) / 1e9);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            previous.clear();
+            previous.putAll(values);
+            previousTime[0] = now;
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // Writes name=value lines, plus name.rate per second for the counters
+    private static void writeSnapshot(File file, Map<String, Object> values, Map<String, Object> previous, double seconds) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            out.write("time=" + System.currentTimeMillis() + "\n");
+            for (Map.Entry<String, Object> value : values.entrySet()) {
+                out.write(value.getKey() + "=" + value.getValue() + "\n");
+                Object before = previous.get(value.getKey());
+                if (COUNTERS.contains(value.getKey()) && before != null && seconds > 0) {
+                    out.write(value.getKey() + ".rate=" + String.format(Locale.ROOT, "%.2f", ((Long) value.getValue() - (Long) before) / seconds) + "\n");
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Stops the snapshots and unregisters from JMX
+     */
+    public synchronized void close() {
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+            snapshots = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            objectName = null;
+        }
+    }
+}
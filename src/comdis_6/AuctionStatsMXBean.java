@@ -0,0 +1,72 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+/**
+ * JMX view of an AuctionStats, every getter is a read-only attribute.
+ * Latencies are in milliseconds, -1 until the first one is recorded.
+ *
+ * @author aculledor
+ */
+public interface AuctionStatsMXBean {
+
+    long getCfpMessages();
+
+    long getCfpDeliveries();
+
+    long getOffersAnnounced();
+
+    long getReplyMessages();
+
+    long getOffersAnswered();
+
+    long getAuctionsOpened();
+
+    long getCatalogueSize();
+
+    long getRoundsClosed();
+
+    /**
+     * @return the rounds settled between proxy bidders without messages
+     */
+    long getRoundsSkipped();
+
+    long getAuctionsClosed();
+
+    /**
+     * @return the rounds the sold auctions took since their last reset
+     */
+    long getSoldRounds();
+
+    long getTradesFailed();
+
+    long getTradesRefused();
+
+    long getTradeTimeouts();
+
+    long getTradesInFlight();
+
+    long getMaxTradesInFlight();
+
+    /**
+     * @return average CFPs decided per buyer activation, or 0 if none
+     */
+    double getCfpsPerBatch();
+
+    long getMaxBuyerQueue();
+
+    long getMaxSellerQueue();
+
+    double getSaleLatencyP50();
+
+    double getSaleLatencyP99();
+
+    double getTradeLatencyP50();
+
+    double getTradeLatencyP99();
+
+    double getDecideLatencyP99();
+}
@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+/**
+ * How an auction finds its winner and its price.
+ * <ul>
+ * <li>ENGLISH: the price goes up by the increment every round while more
+ * than one buyer accepts; the last buyer standing wins.</li>
+ * <li>DUTCH: the price goes down by the increment every round; the first
+ * buyer to accept wins at that price.</li>
+ * <li>SEALED_FIRST_PRICE: a single round where every buyer bids its maximum
+ * once; the highest bid wins and pays its bid.</li>
+ * <li>SEALED_SECOND_PRICE: as sealed first-price, but the winner pays the
+ * second highest bid, or the reserve price if it was the only bidder.</li>
+ * </ul>
+ *
+ * @author aculledor
+ */
+public enum AuctionType {
+
+    ENGLISH(0, "english"),
+    DUTCH(1, "dutch"),
+    SEALED_FIRST_PRICE(2, "first-price"),
+    SEALED_SECOND_PRICE(3, "second-price");
+
+    private final byte code;
+    private final String label;
+
+    private AuctionType(int code, String label) {
+        this.code = (byte) code;
+        this.label = label;
+    }
+
+    /**
+     * @return the byte sent in the AuctionCodec offer records and the journal
+     */
+    public byte getCode() {
+        return code;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return true for the types where buyers send a bid instead of
+     * accepting a price
+     */
+    public boolean isSealed() {
+        return this == SEALED_FIRST_PRICE || this == SEALED_SECOND_PRICE;
+    }
+
+    /**
+     * @param code
+     * @return the type, ENGLISH for an unknown code
+     */
+    public static AuctionType fromCode(byte code) {
+        for (AuctionType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        return ENGLISH;
+    }
+
+    /**
+     * @param label the label or the enum name, in any case
+     * @return the type, or null if there is none with that label
+     */
+    public static AuctionType parse(String label) {
+        for (AuctionType type : values()) {
+            if (type.label.equalsIgnoreCase(label) || type.name().equalsIgnoreCase(label)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import jade.core.AID;
+import java.util.List;
+
+/**
+ * Decision logic of a BookBuyerAgent. The agent hands the strategy every
+ * offer it received in one activation, together with its BuyerLedger, and
+ * the strategy marks the offers to accept; it also decides whether a
+ * purchase order is taken.
+ *
+ * @author aculledor
+ */
+public interface BiddingStrategy {
+
+    /**
+     * An auction round offered to the buyer, or a purchase order
+     */
+    final class Offer {
+
+        long auctionId;
+        int round, price;
+        AuctionType auctionType;
+        String title;
+        AID seller;
+
+        // Maximum price for the title in the wishlist, or Wishlist.NOT_WANTED
+        int maxPrice;
+
+        // Set by the strategy. In a sealed-bid auction the price is the
+        // reserve and an accepted offer carries the bid, in an English
+        // auction a bid above the price is a proxy maximum
+        boolean accept;
+        int bid;
+
+        public long getAuctionId() {
+            return auctionId;
+        }
+
+        public int getRound() {
+            return round;
+        }
+
+        public int getPrice() {
+            return price;
+        }
+
+        public AuctionType getAuctionType() {
+            return auctionType;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public AID getSeller() {
+            return seller;
+        }
+
+        public int getMaxPrice() {
+            return maxPrice;
+        }
+
+        /**
+         * @return true if the title is wanted at the offered price
+         */
+        public boolean isWanted() {
+            return maxPrice != Wishlist.NOT_WANTED && maxPrice >= price;
+        }
+
+        public boolean isAccepted() {
+            return accept;
+        }
+
+        public void setAccepted(boolean accept) {
+            this.accept = accept;
+        }
+
+        public int getBid() {
+            return bid;
+        }
+
+        /**
+         * Accepts a sealed-bid offer with a bid, or an English offer with
+         * the most the seller may bid for the buyer
+         * @param bid at least the offered price
+         */
+        public void setBid(int bid) {
+            this.accept = true;
+            this.bid = bid;
+        }
+
+        /**
+         * @return what accepting the offer may cost: the bid of a sealed-bid
+         * or proxy offer, the offered price otherwise
+         */
+        public int cost() {
+            return Math.max(bid, price);
+        }
+
+        @Override
+        public String toString() {
+            return "Offer{" + "auction=" + auctionId + ", " + auctionType + ", title=" + title + ", round=" + round + ", price=" + price + "€, max=" + maxPrice + "€}";
+        }
+    }
+
+    /**
+     * Marks the offers to accept. Offers start rejected; the strategy keeps
+     * the ledger's commitments in line with its choices. Sealed-bid offers
+     * are accepted with a bid, see Offer.setBid
+     *
+     * @param offers the offers of one activation, from any number of sellers
+     * @param ledger the buyer's budget and commitments
+     * @param now current time in milliseconds, stamped on the commitments
+     */
+    void decide(List<Offer> offers, BuyerLedger ledger, long now);
+
+    /**
+     * @param order a purchase order, priced at the winning price
+     * @param ledger the buyer's budget and commitments
+     * @return true to buy
+     */
+    boolean acceptTrade(Offer order, BuyerLedger ledger);
+}
@@ -20,6 +20,8 @@
  **************************************************************** */
 package comdis_6;
 
+import comdis_6.EventLog.Level;
+import jade.core.AID;
 import jade.core.Agent;
 import jade.core.behaviours.*;
 import jade.lang.acl.ACLMessage;
@@ -28,8 +30,19 @@ import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class BookBuyerAgent extends Agent {
     // Type of the agent
@@ -40,23 +53,158 @@ public class BookBuyerAgent extends Agent {
     
     // Type of the trade message
     private final String tradeMessageType = "book-trade";
+
+    // Type of the messages subscribing to our titles and carrying them
+    private final String interestsMessageType = "book-interests";
+
+    // Most CFPs decided per activation of the OfferRequestsHandler
+    private final int maxCfpBatch = 64;
+
+    // Time after the last CFP of an auction before its commitment is dropped
+    // IN MILISECONDS. Sellers only announce an auction when its round
+    // changes, so it spans a few rounds
+    private final int commitmentTimeout = 30000;
+
+    // Time during which a CFP for an auction round already decided is a
+    // duplicate IN MILISECONDS. Shorter than a round, so a round the seller
+    // repeats because nobody accepted it is decided again
+    private final int duplicateWindow = 1000;
+
+    // Time a purchase is remembered IN MILISECONDS, a seller that cancels it
+    // within this time gets the title back in the targetBooks. As long as the
+    // sellers keep the orders that timed out
+    private final int purchaseMemory = 60000;
     
-    // The title of the book to buy
-    private Map<String, Integer> targetBooks;
+    // The titles of the books to buy, with the maximum price for each
+    private Wishlist targetBooks;
     
     // The GUI by means of which the user can add books in the catalogue
     private BookBuyerGUI myGui;
 
+    // Engine counters: the benchmark's when launched by AuctionBenchmark,
+    // otherwise our own registered over JMX
+    private AuctionStats stats;
+    private boolean ownStats;
+
+    // Time between the metrics snapshots IN MILISECONDS
+    private final int metricsPeriod = 5000;
+
+    // Asynchronous event log, named after the agent
+    private EventLog events;
+
+    // The titles in our entry in the yellow pages, never modified
+    private Set<String> registeredInterests;
+
+    // The sellers subscribed to our titles, and the titles we started (true)
+    // or stopped (false) wanting since they were last sent
+    private final Set<AID> interestSubscribers = new LinkedHashSet<>();
+    private final Map<String, Boolean> changedInterests = new LinkedHashMap<>();
+
+    // Time between the sends of the changes of the targetBooks IN MILISECONDS
+    private final int interestsPeriod = 1000;
+
+    // Chooses the offers to accept and the purchase orders to take
+    private BiddingStrategy strategy;
+
+    // The budget and the auctions we are committed to
+    private BuyerLedger ledger;
+
+    // Offers of the current activation, the reply each decision goes in, and
+    // a pool of offers reused across activations
+    private final List<BiddingStrategy.Offer> offers = new ArrayList<>();
+    private final List<PendingReply> offerReplies = new ArrayList<>();
+    private final List<BiddingStrategy.Offer> offerPool = new ArrayList<>();
+    private final BiddingStrategy.Offer order = new BiddingStrategy.Offer();
+
+    // The round of the auctions decided within the duplicateWindow, by
+    // seller and auction id in the order they were decided
+    private final LinkedHashMap<AuctionKey, Decision> decided = new LinkedHashMap<>();
+
+    // The purchases made within the purchaseMemory, by seller and auction id
+    // in the order they were made
+    private final LinkedHashMap<AuctionKey, Purchase> purchases = new LinkedHashMap<>();
+
+    // Decoders of the CFP and trade messages, one per behaviour
+    private final AuctionCodec.Reader offerReader = new AuctionCodec.Reader();
+    private final AuctionCodec.Reader tradeReader = new AuctionCodec.Reader();
+
     // Put agent initializations here
     @Override
     protected void setup() {
-        // Register the book-buying service in the yellow pages
+        events = EventLog.get(getLocalName());
+
+        targetBooks = new Wishlist();
+
+        // Read the start-up arguments: "headless" skips the GUI, "budget=<n>"
+        // caps the money spent, "strategy=greedy" accepts every wanted offer
+        // like the original buyer, "proxy" lets the sellers bid for us in
+        // English auctions, "metrics=<file>" writes periodic metrics
+        // snapshots, a Map or "title=price" strings preload the targetBooks
+        // and an AuctionStats collects the counters
+        boolean headless = false;
+        long budget = BuyerLedger.UNLIMITED;
+        File metricsFile = null;
+        boolean greedy = false, proxy = false;
+        strategy = null;
+        Object[] args = getArguments();
+        if (args != null) {
+            for (Object arg : args) {
+                if ("headless".equals(arg)) {
+                    headless = true;
+                } else if (arg instanceof String && ((String) arg).startsWith("budget=")) {
+                    budget = parseNumber("budget", ((String) arg).substring("budget=".length()));
+                } else if (arg instanceof String && ((String) arg).startsWith("metrics=")) {
+                    metricsFile = new File(((String) arg).substring("metrics=".length()));
+                } else if ("strategy=greedy".equals(arg)) {
+                    greedy = true;
+                } else if ("strategy=cheapest".equals(arg)) {
+                    greedy = false;
+                } else if (arg instanceof String && ((String) arg).startsWith("strategy=")) {
+                    throw new IllegalArgumentException("Unknown strategy " + arg + ", expected strategy=greedy or strategy=cheapest");
+                } else if ("proxy".equals(arg)) {
+                    proxy = true;
+                } else if (arg instanceof BiddingStrategy) {
+                    strategy = (BiddingStrategy) arg;
+                } else if (arg instanceof AuctionStats) {
+                    stats = (AuctionStats) arg;
+                } else if (arg instanceof Map) {
+                    Map<String, Integer> titles = new HashMap<>();
+                    for (Map.Entry<?, ?> entry : ((Map<?, ?>) arg).entrySet()) {
+                        if (validPrice(entry.getKey().toString(), ((Number) entry.getValue()).longValue())) {
+                            titles.put(entry.getKey().toString(), ((Number) entry.getValue()).intValue());
+                        }
+                    }
+                    targetBooks.putAll(titles);
+                } else if (arg instanceof String && ((String) arg).contains("=")) {
+                    String target = (String) arg;
+                    int split = target.lastIndexOf('=');
+                    String title = target.substring(0, split);
+                    long price = parseNumber("price of " + title, target.substring(split + 1));
+                    if (validPrice(title, price)) {
+                        targetBooks.put(title, (int) Math.min(price, Integer.MAX_VALUE));
+                    }
+                } else if (arg instanceof String && !((String) arg).isEmpty()) {
+                    events.log(Level.WARN, "args.ignored", "arg", arg);
+                }
+            }
+        }
+
+        if (strategy == null) {
+            strategy = greedy ? new GreedyStrategy(proxy) : new CheapestOfferStrategy(proxy);
+        }
+        ledger = new BuyerLedger(budget, commitmentTimeout);
+
+        // Register the book-buying service in the yellow pages, with the
+        // titles we want so sellers only send us their CFPs. Sellers
+        // subscribe to us for the later changes
         DFAgentDescription dfd = new DFAgentDescription();
         dfd.setName(getAID());
-        ServiceDescription sd = new ServiceDescription();
-        sd.setType(agentType);
-        sd.setName("JADE-book-trading-"+System.currentTimeMillis());
-        dfd.addServices(sd);
+        ServiceDescription service = new ServiceDescription();
+        service.setType(agentType);
+        service.setName("JADE-book-trading-"+System.currentTimeMillis());
+        registeredInterests = new HashSet<>(targetBooks.toMap().keySet());
+        InterestIndex.publish(service, registeredInterests);
+        dfd.addServices(service);
         try {
             DFService.register(this, dfd);
         } catch (FIPAException fe) {
@@ -64,18 +212,64 @@ public class BookBuyerAgent extends Agent {
         }
 
         // Create and show the GUI 
-        myGui = new BookBuyerGUI(this);
-        myGui.showGui();
+        if (!headless) {
+            myGui = new BookBuyerGUI(this);
+            myGui.showGui();
+        }
         
         // Printout a welcome message
-        System.out.println("Hallo! Buyer-agent " + getAID().getName() + " is ready.");
-        targetBooks = new HashMap<>();
+        events.log(Level.INFO, "buyer.ready", "agent", getAID().getName(), "wanted", targetBooks.size());
+
+        // Counters of our own when nobody passed them, visible over JMX
+        if (stats == null) {
+            stats = new AuctionStats();
+            stats.register(getLocalName());
+            ownStats = true;
+        }
+        if (metricsFile != null) {
+            stats.startSnapshots(metricsFile, metricsPeriod);
+        }
 
         // Add the behaviour serving queries from buyer agents
         addBehaviour(new OfferRequestsHandler());
 
         // Add the behaviour serving purchase orders from buyer agents
         addBehaviour(new PurchaseOrdersHandler());
+
+        // Add the behaviour serving the sellers subscribing to our titles
+        addBehaviour(new InterestsSubscriptionsHandler());
+
+        // Add the behaviour sending the changes of the titles we want
+        addBehaviour(new InterestsPublisher(this, interestsPeriod));
+    }
+
+    /**
+     * @param name what the value is, for the error message
+     * @param value
+     * @return the value as a number
+     * @throws IllegalArgumentException if it is not one
+     */
+    private static long parseNumber(String name, String value) {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected a number for the " + name + ", got \"" + value + "\"", e);
+        }
+    }
+
+    /**
+     * Maximum prices are not negative, a negative one is logged and the
+     * title left out instead of failing the agent
+     * @param title
+     * @param price
+     * @return true if the price can go in the targetBooks
+     */
+    private boolean validPrice(String title, long price) {
+        if (price >= 0) {
+            return true;
+        }
+        events.log(Level.WARN, "wishlist.rejected", "title", title, "price", price);
+        return false;
     }
 
     // Put agent clean-up operations here
@@ -85,10 +279,20 @@ public class BookBuyerAgent extends Agent {
         try {
             DFService.deregister(this);
             // Printout a dismissal message
-            System.out.println("Buyer-agent " + getAID().getName() + " terminating.");
+            events.log(Level.INFO, "buyer.terminated", "agent", getAID().getName());
         } catch (FIPAException fe) {
             fe.printStackTrace();
         }
+
+        // Close the GUI
+        if (myGui != null) {
+            myGui.dispose();
+        }
+
+        // Leave JMX
+        if (ownStats) {
+            stats.close();
+        }
     }
     
     
@@ -101,52 +305,237 @@ public class BookBuyerAgent extends Agent {
     public void updateTargetBooks(String title, int price) {
         addBehaviour(new OneShotBehaviour() {
             public void action() {
+                if (!validPrice(title, price)) {
+                    return;
+                }
+                boolean added = targetBooks.maxPrice(title) == Wishlist.NOT_WANTED;
                 targetBooks.put(title, price);
-                System.out.println(title + " inserted into targetBooks. Price = " + price);
+                if (added) {
+                    changedInterests.put(title, true);
+                }
+                events.log(Level.INFO, "wishlist.put", "title", title, "price", price);
             }
         });
     }
-    
-    public String getTitle(ACLMessage message){
-        return message.getContent().split("-")[0];
+
+    /**
+     * Adds or updates many target books at once
+     * @param titles maximum price by title
+     */
+    public void updateTargetBooks(Map<String, Integer> titles) {
+        Map<String, Integer> copy = new HashMap<>(titles);
+        addBehaviour(new OneShotBehaviour() {
+            public void action() {
+                List<String> added = new ArrayList<>();
+                Iterator<Map.Entry<String, Integer>> it = copy.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<String, Integer> entry = it.next();
+                    if (!validPrice(entry.getKey(), entry.getValue())) {
+                        it.remove();
+                    } else if (targetBooks.maxPrice(entry.getKey()) == Wishlist.NOT_WANTED) {
+                        added.add(entry.getKey());
+                    }
+                }
+                targetBooks.putAll(copy);
+                for (String title : added) {
+                    changedInterests.put(title, true);
+                }
+                events.log(Level.INFO, "wishlist.putAll", "titles", copy.size(), "wanted", targetBooks.size());
+            }
+        });
     }
     
-    public Integer getPrice(ACLMessage message){
-        return Integer.parseInt(message.getContent().split("-")[1]);
+    /**
+     * Reads every auction listed in a CFP into the offers of the activation
+     * @param cfp a single or batched CFP
+     * @param reply where the decisions for the CFP's auctions will be added
+     */
+    private void collectOffers(ACLMessage cfp, PendingReply reply) {
+        if (!offerReader.wrap(cfp.getByteSequenceContent()) || offerReader.type() != AuctionCodec.CFP) {
+            return;
+        }
+        reply.cfp = cfp;
+        long now = System.currentTimeMillis();
+        while (offerReader.next()) {
+            if (isDuplicate(cfp.getSender(), offerReader.id(), offerReader.round(), now)) {
+                continue;
+            }
+            if (offerPool.size() == offers.size()) {
+                offerPool.add(new BiddingStrategy.Offer());
+            }
+            BiddingStrategy.Offer offer = offerPool.get(offers.size());
+            readOffer(offerReader, cfp, offer);
+            offers.add(offer);
+            offerReplies.add(reply);
+        }
+    }
+
+    /**
+     * Remembers the round of an auction being decided
+     * @param seller
+     * @param auctionId
+     * @param round
+     * @param now current time in milliseconds
+     * @return true if the same round was decided within the duplicateWindow
+     */
+    private boolean isDuplicate(AID seller, long auctionId, int round, long now) {
+        // Forget the decisions out of the window, the oldest come first
+        Iterator<Decision> it = decided.values().iterator();
+        while (it.hasNext() && now - it.next().at > duplicateWindow) {
+            it.remove();
+        }
+
+        AuctionKey auction = new AuctionKey(seller, auctionId);
+        Decision last = decided.get(auction);
+        if (last != null && last.round == round) {
+            return true;
+        }
+        if (last == null) {
+            last = new Decision();
+        } else {
+            decided.remove(auction);
+        }
+        last.round = round;
+        last.at = now;
+        decided.put(auction, last);
+        return false;
+    }
+
+    /**
+     * Lets the strategy decide the offers of the activation and adds one
+     * PROPOSAL record per offer to its reply
+     */
+    private void decideOffers() {
+        long now = System.currentTimeMillis();
+        ledger.expire(now);
+        strategy.decide(offers, ledger, now);
+        for (int i = 0; i < offers.size(); i++) {
+            BiddingStrategy.Offer offer = offers.get(i);
+            offerReplies.get(i).add(offer.auctionId, offer.round, offer.accept, offer.bid);
+        }
+        offers.clear();
+        offerReplies.clear();
+    }
+
+    /**
+     * @param record a reader positioned on a CFP or TRADE record
+     * @param msg the message the record came in
+     * @param offer filled with the record, not accepted
+     */
+    private void readOffer(AuctionCodec.Reader record, ACLMessage msg, BiddingStrategy.Offer offer) {
+        offer.auctionId = record.id();
+        offer.round = record.round();
+        offer.price = record.price();
+        offer.auctionType = AuctionType.fromCode(record.auctionType());
+        offer.title = record.title();
+        offer.seller = msg.getSender();
+        offer.maxPrice = targetBooks.maxPrice(record.buffer(), record.titleOffset(), record.titleLength());
+        offer.accept = false;
+        offer.bid = 0;
+    }
+
+    /**
+     * An auction round being decided and when it was
+     */
+    private static class Decision {
+
+        private int round;
+        private long at;
     }
-    
+
+    /**
+     * Inner class PendingReply. The decisions for one seller gathered during
+     * an activation of the OfferRequestsHandler, sent as a single reply
+     */
+    private class PendingReply {
+
+        // The last CFP from the seller, the reply answers it
+        private ACLMessage cfp;
+        private byte[] records = new byte[AuctionCodec.HEADER_SIZE + 16 * AuctionCodec.PROPOSAL_SIZE];
+        private int count, offset = AuctionCodec.HEADER_SIZE;
+
+        // Decision of the last record added
+        private boolean accepted;
+
+        private void add(long id, int round, boolean accepted, int bid) {
+            if (count == AuctionCodec.MAX_RECORDS) {
+                send();
+            }
+            if (offset + AuctionCodec.PROPOSAL_SIZE > records.length) {
+                records = Arrays.copyOf(records, records.length * 2);
+            }
+            offset = AuctionCodec.writeProposal(records, offset, id, round, accepted, bid);
+            this.accepted = accepted;
+            count++;
+        }
+
+        private void send() {
+            if (count == 0) {
+                return;
+            }
+            AuctionCodec.writeHeader(records, AuctionCodec.PROPOSAL, count);
+            ACLMessage reply = cfp.createReply();
+
+            // A single auction gets its decision as the performative, several get an INFORM
+            if (count > 1) {
+                reply.setPerformative(ACLMessage.INFORM);
+            } else if (accepted) {
+                reply.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
+            } else {
+                reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
+            }
+            reply.setByteSequenceContent(Arrays.copyOf(records, offset));
+            BookBuyerAgent.this.send(reply);
+            count = 0;
+            offset = AuctionCodec.HEADER_SIZE;
+        }
+    }  // End of inner class PendingReply
 
     /**
      * Inner class OfferRequestsHandler. This is the behaviour used by
      * Book-buyer agents to serve incoming requests for offer from seller
      * agents. If the requested book is in the local interest list the buyer agent
      * and the price is within the maximun set replies with a PROPOSE message 
-     * Otherwise a REFUSE message is sent back.
+     * Otherwise a REFUSE message is sent back. Each activation drains up to
+     * maxCfpBatch CFPs and the decisions for the same seller are merged in a
+     * single INFORM.
      */
     private class OfferRequestsHandler extends CyclicBehaviour {
 
+        private final MessageTemplate mt = MessageTemplate.and(
+                MessageTemplate.MatchPerformative(ACLMessage.CFP),
+                MessageTemplate.MatchConversationId(offerMessageType));
+
+        // The replies being gathered, by seller, reused across activations
+        private final Map<AID, PendingReply> pending = new HashMap<>();
+
         public void action() {
-            MessageTemplate mt = MessageTemplate.and(
-                    MessageTemplate.MatchPerformative(ACLMessage.CFP),
-                    MessageTemplate.MatchConversationId(offerMessageType));
             ACLMessage msg = myAgent.receive(mt);
-            if (msg != null) {
-                // CFP Message received. Process it
-                String title = getTitle(msg);
-                Integer price = getPrice(msg);
-                ACLMessage reply = msg.createReply();
-                
-                // We want the book proposed. Set response to propose
-                if (title != null && price != null && targetBooks.keySet().contains(title) && targetBooks.get(title) >= price)
-                    reply.setPerformative(ACLMessage.ACCEPT_PROPOSAL);
-                // We dont want the book. Set response to refuse
-                else
-                    reply.setPerformative(ACLMessage.REJECT_PROPOSAL);
-                reply.setContent("not-available");
-                myAgent.send(reply);
-            } else {
+            if (msg == null) {
                 block();
+                return;
+            }
+
+            // CFP Messages received. Decide as many as the batch allows
+            long start = System.nanoTime();
+            int drained = 0;
+            while (msg != null) {
+                PendingReply reply = pending.get(msg.getSender());
+                if (reply == null) {
+                    reply = new PendingReply();
+                    pending.put(msg.getSender(), reply);
+                }
+                collectOffers(msg, reply);
+                if (++drained == maxCfpBatch) {
+                    break;
+                }
+                msg = myAgent.receive(mt);
+            }
+            decideOffers();
+            for (PendingReply reply : pending.values()) {
+                reply.send();
             }
+            stats.cfpBatchDecided(drained, myAgent.getCurQueueSize(), System.nanoTime() - start);
         }
     }  // End of inner class OfferRequestsHandler
 
@@ -155,26 +544,41 @@ public class BookBuyerAgent extends Agent {
      * Book-buyer agents to serve incoming offer acceptances (i.e. purchase
      * orders) from seller agents. The Buyer agent removes the purchased book
      * from its wanted list and replies with an INFORM message to notify the seller
-     * that the purchase has been sucesfully completed.
+     * that the purchase has been sucesfully completed. A seller that got our
+     * agreement after the order timed out cancels it, the price is refunded
+     * and the book is wanted again.
      */
     private class PurchaseOrdersHandler extends CyclicBehaviour {
 
         public void action() {
             MessageTemplate mt = MessageTemplate.and(
-                    MessageTemplate.MatchPerformative(ACLMessage.PROPOSE),
+                    MessageTemplate.or(MessageTemplate.MatchPerformative(ACLMessage.PROPOSE),
+                            MessageTemplate.MatchPerformative(ACLMessage.CANCEL)),
                     MessageTemplate.MatchConversationId(tradeMessageType));
             ACLMessage msg = myAgent.receive(mt);
-            if (msg != null) {
+            if (msg != null && msg.getPerformative() == ACLMessage.CANCEL) {
+                cancelPurchase(msg);
+            } else if (msg != null) {
                 // PROPOSE Message received. Process it
-                String title = getTitle(msg);
-                Integer price = getPrice(msg);
                 ACLMessage reply = msg.createReply();
-                
-                // We accept the transaction. Set response to AGREE
-                if (title != null && price != null && 
-                        targetBooks.keySet().contains(title) && targetBooks.get(title) >= price) {
+                boolean valid = tradeReader.wrap(msg.getByteSequenceContent())
+                        && tradeReader.type() == AuctionCodec.TRADE && tradeReader.next();
+
+                if (valid) {
+                    readOffer(tradeReader, msg, order);
+                }
+
+                // We accept the transaction. Set response to AGREE and stop
+                // bidding for the title
+                if (valid && strategy.acceptTrade(order, ledger)) {
                     reply.setPerformative(ACLMessage.AGREE);
-                    System.out.println("Accepted to buy " +title + " for " + price + "€ from " + msg.getSender().getName());
+                    ledger.bought(order.seller, order.auctionId, order.title, order.price);
+                    if (targetBooks.remove(tradeReader.buffer(), tradeReader.titleOffset(), tradeReader.titleLength())) {
+                        changedInterests.put(order.title, false);
+                    }
+                    rememberPurchase(order, System.currentTimeMillis());
+                    events.log(Level.INFO, "trade.accepted", "auction", order.auctionId, "title", order.title,
+                            "price", order.price, "seller", msg.getSender().getLocalName());
                 } 
                 // We reject the transaction. Set response to REFUSE
                 else
@@ -187,4 +591,174 @@ public class BookBuyerAgent extends Agent {
             }
         }
     }  // End of inner class PurchaseOrdersHandler
+
+    /**
+     * Remembers a purchase for the purchaseMemory, in case its seller
+     * cancels it
+     * @param order the accepted purchase order
+     * @param now current time in milliseconds
+     */
+    private void rememberPurchase(BiddingStrategy.Offer order, long now) {
+        // Forget the purchases out of the memory, the oldest come first
+        Iterator<Purchase> it = purchases.values().iterator();
+        while (it.hasNext() && now - it.next().at > purchaseMemory) {
+            it.remove();
+        }
+        purchases.put(new AuctionKey(order.seller, order.auctionId), new Purchase(order.title, order.price, order.maxPrice, now));
+    }
+
+    /**
+     * Undoes a purchase the seller cancelled: the price goes back to the
+     * budget and the title to the targetBooks
+     * @param cancel the seller's CANCEL, with the order's record
+     */
+    private void cancelPurchase(ACLMessage cancel) {
+        if (!tradeReader.wrap(cancel.getByteSequenceContent()) || tradeReader.type() != AuctionCodec.TRADE || !tradeReader.next()) {
+            return;
+        }
+        Purchase purchase = purchases.remove(new AuctionKey(cancel.getSender(), tradeReader.id()));
+        if (purchase == null) {
+            return;
+        }
+        ledger.refund(purchase.price);
+        if (targetBooks.maxPrice(purchase.title) == Wishlist.NOT_WANTED) {
+            targetBooks.put(purchase.title, purchase.maxPrice);
+            changedInterests.put(purchase.title, true);
+        }
+        events.log(Level.WARN, "trade.cancelled", "auction", tradeReader.id(), "title", purchase.title,
+                "price", purchase.price, "seller", cancel.getSender().getLocalName());
+    }
+
+    /**
+     * A book bought, what it cost and when
+     */
+    private static class Purchase {
+
+        private final String title;
+        private final int price, maxPrice;
+        private final long at;
+
+        private Purchase(String title, int price, int maxPrice, long at) {
+            this.title = title;
+            this.price = price;
+            this.maxPrice = maxPrice;
+            this.at = at;
+        }
+    }
+
+    /**
+     * Sends titles we started and stopped wanting to sellers, one message
+     * per seller and MAX_RECORDS titles. The reply-with names the seller, so
+     * a delivery failure tells which one is gone
+     * @param sellers
+     * @param added
+     * @param removed
+     */
+    private void sendInterests(Collection<AID> sellers, Collection<String> added, Collection<String> removed) {
+        for (byte[] content : AuctionCodec.encodeInterests(added, removed)) {
+            for (AID seller : sellers) {
+                ACLMessage inform = new ACLMessage(ACLMessage.INFORM);
+                inform.addReceiver(seller);
+                inform.setConversationId(interestsMessageType);
+                inform.setReplyWith(seller.getName());
+                inform.setByteSequenceContent(content);
+                send(inform);
+            }
+        }
+    }
+
+    /**
+     * Adds a subscriber and sends it how the targetBooks differ from the
+     * titles it read in our registration
+     * @param seller
+     */
+    private void subscribed(AID seller) {
+        interestSubscribers.add(seller);
+        Set<String> wanted = targetBooks.toMap().keySet();
+        List<String> added = new ArrayList<>();
+        for (String title : wanted) {
+            if (!registeredInterests.contains(title)) {
+                added.add(title);
+            }
+        }
+        List<String> removed = new ArrayList<>();
+        for (String title : registeredInterests) {
+            if (!wanted.contains(title)) {
+                removed.add(title);
+            }
+        }
+        sendInterests(Collections.singleton(seller), added, removed);
+    }
+
+    /**
+     * Inner class InterestsSubscriptionsHandler.
+     * This is the behaviour used by Book-buyer agents to serve the sellers
+     * subscribing to the titles they want. A new subscriber gets the changes
+     * since our registration at once and then those from the
+     * InterestsPublisher, until it cancels or a message to it cannot be
+     * delivered.
+     */
+    private class InterestsSubscriptionsHandler extends CyclicBehaviour {
+
+        private final MessageTemplate mt = MessageTemplate.MatchConversationId(interestsMessageType);
+
+        @Override
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            switch (msg.getPerformative()) {
+                case ACLMessage.SUBSCRIBE:
+                    subscribed(msg.getSender());
+                    break;
+                case ACLMessage.CANCEL:
+                    interestSubscribers.remove(msg.getSender());
+                    break;
+                case ACLMessage.FAILURE:
+                    if (msg.getSender().equals(getAMS()) && msg.getInReplyTo() != null) {
+                        interestSubscribers.remove(new AID(msg.getInReplyTo(), AID.ISGUID));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+    }  // End of inner class InterestsSubscriptionsHandler
+
+    /**
+     * Inner class InterestsPublisher.
+     * This is the behaviour used by Book-buyer agents to send the changes of
+     * the titles they want to the subscribed sellers. Changes are collected
+     * and sent once per period, only the latest change of each title.
+     */
+    private class InterestsPublisher extends TickerBehaviour {
+
+        public InterestsPublisher(Agent a, long period) {
+            super(a, period);
+        }
+
+        @Override
+        protected void onTick() {
+            if (changedInterests.isEmpty()) {
+                return;
+            }
+            List<String> added = new ArrayList<>();
+            List<String> removed = new ArrayList<>();
+            for (Map.Entry<String, Boolean> change : changedInterests.entrySet()) {
+                if (change.getValue()) {
+                    added.add(change.getKey());
+                } else {
+                    removed.add(change.getKey());
+                }
+            }
+            changedInterests.clear();
+            sendInterests(interestSubscribers, added, removed);
+            if (EventLog.isEnabled(Level.DEBUG)) {
+                events.log(Level.DEBUG, "interests.sent", "added", added.size(), "removed", removed.size(),
+                        "sellers", interestSubscribers.size());
+            }
+        }
+    }  // End of inner class InterestsPublisher
 }
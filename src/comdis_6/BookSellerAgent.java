@@ -29,14 +29,18 @@ import jade.domain.DFService;
 import jade.domain.FIPAException;
 import jade.domain.FIPAAgentManagement.DFAgentDescription;
 import jade.domain.FIPAAgentManagement.ServiceDescription;
+import comdis_6.EventLog.Level;
+import jade.wrapper.AgentController;
+import jade.wrapper.ControllerException;
+import jade.wrapper.StaleProxyException;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
 import java.util.*;
 
 public class BookSellerAgent extends Agent {
 
-    // Duration of rounds IN MILISECONDS
-    private final int roundDuration = 10000;
-
     // Type of the agent
     private final String agentType = "book-selling";
 
@@ -49,30 +53,194 @@ public class BookSellerAgent extends Agent {
     // Type of the trade message
     private final String tradeMessageType = "book-trade";
 
-    // The catalogue of books for sale (maps the title of a book to its object)
-    private List<Auction> catalogue;
+    // Type of the catalogue ingestion message
+    private final String catalogueMessageType = "book-catalogue";
+
+    // Type of the messages subscribing to a buyer's titles and carrying them
+    private final String interestsMessageType = "book-interests";
+
+    // Time to wait for the answer to a purchase order IN MILISECONDS
+    private final int tradeTimeout = 5000;
+
+    // Time a timed-out purchase order is remembered IN MILISECONDS, a late
+    // AGREE within it is cancelled so the buyer gets its money back
+    private final int tombstoneTimeout = 60000;
+
+    // The round rules of our auctions, run on the system clock
+    private AuctionEngine engine;
 
     // The repository of successful transactions
-    private Map<String, Auction> repository;
+    private SalesRepository repository;
 
     // The GUI by means of which the user can add books in the catalogue
     private BookSellerGui myGui;
 
+    // Engine counters: the benchmark's when launched by AuctionBenchmark or
+    // the coordinator's in a shard, otherwise our own registered over JMX
+    private AuctionStats stats;
+    private boolean ownStats;
+
+    // Time between the metrics snapshots IN MILISECONDS
+    private final int metricsPeriod = 5000;
+
+    // Asynchronous event log, named after the agent
+    private EventLog events;
+
+    // Batched announcement mode: the auctions announced together share a CFP
+    private boolean batched;
+
+    // The behaviour announcing the changed auctions
+    private CfpAnnouncer announcer;
+
+    // The behaviour closing the rounds as their deadlines pass
+    private RoundCloser roundCloser;
+
+    // The behaviour sending the purchase orders and collecting their answers
+    private TradePipeline trades;
+
+    // Number of purchase orders sent, used for their reply-with
+    private long orderCount;
+
+    // Write-ahead journal of the catalogue and repository, only set when enabled
+    private AuctionJournal journal;
+
+    // Time between the group commits of the journal IN MILISECONDS
+    private final int journalCommitPeriod = 200;
+
+    // Number of batched CFPs sent, used for their reply-with
+    private long batchCount;
+
+    // Message reused for every single-auction CFP. It has no reply-with,
+    // replies are routed by the auction id in their records
+    private final ACLMessage auctionCfp = new ACLMessage(ACLMessage.CFP);
+
     // The template ofr sendind CFP
     DFAgentDescription templateCFP;
     ServiceDescription sdCFP;
 
+    // Local cache of the book-buying agents and the titles they want, kept
+    // up to date by the DF subscription and the buyers' INTERESTS messages
+    private InterestIndex interests;
+
+    // Sharded mode: the worker agents owning the auctions, by auction id
+    // modulo their number. Only set in the coordinator
+    private AgentController[] shards;
+
+    // True in a worker started by a coordinator, it runs auctions but
+    // neither registers in the yellow pages nor shows a GUI
+    private boolean shardWorker;
+
+    // The DF subscription feeding the buyers cache
+    private ACLMessage buyersSubscription;
+
     // Put agent initializations here
     @Override
     protected void setup() {
         //***********************************   INITIAL SETUP   ***********************************
-        // Create the catalogue and repository
-        catalogue = new ArrayList<>();
-        repository = new HashMap<>();
+        events = EventLog.get(getLocalName());
+
+        // Create the buyers cache
+        interests = new InterestIndex();
+
+        // Read the start-up arguments: "headless" skips the GUI, "batched"
+        // announces the changed auctions together in one CFP, "journal" or
+        // "journal=<dir>" persists the auctions, "import=<file>" loads a CSV or
+        // JSON catalogue, "shards=<n>" splits the auctions across n worker
+        // agents, "metrics=<file>" writes periodic metrics snapshots, Auction
+        // objects are preloaded into the catalogue and an AuctionStats
+        // collects the counters
+        boolean headless = false;
+        int shardCount = 1;
+        File metricsFile = null;
+        File journalDirectory = null;
+        File importFile = null;
+        List<Auction> preloaded = new ArrayList<>();
+        Object[] args = getArguments();
+        if (args != null) {
+            for (Object arg : args) {
+                if ("headless".equals(arg)) {
+                    headless = true;
+                } else if ("batched".equals(arg)) {
+                    batched = true;
+                } else if ("journal".equals(arg)) {
+                    journalDirectory = new File("journal");
+                } else if (arg instanceof String && ((String) arg).startsWith("journal=")) {
+                    journalDirectory = new File(((String) arg).substring("journal=".length()));
+                } else if ("shard".equals(arg)) {
+                    shardWorker = true;
+                    headless = true;
+                } else if (arg instanceof String && ((String) arg).startsWith("shards=")) {
+                    shardCount = Integer.parseInt(((String) arg).substring("shards=".length()));
+                } else if (arg instanceof String && ((String) arg).startsWith("metrics=")) {
+                    metricsFile = new File(((String) arg).substring("metrics=".length()));
+                } else if (arg instanceof String && ((String) arg).startsWith("import=")) {
+                    importFile = new File(((String) arg).substring("import=".length()));
+                } else if (arg instanceof Auction) {
+                    preloaded.add((Auction) arg);
+                } else if (arg instanceof AuctionStats) {
+                    stats = (AuctionStats) arg;
+                }
+            }
+        }
+
+        // Counters of our own when nobody passed them, visible over JMX
+        if (stats == null) {
+            stats = new AuctionStats();
+            stats.register(getLocalName());
+            ownStats = true;
+        }
+        if (metricsFile != null) {
+            stats.startSnapshots(metricsFile, metricsPeriod);
+        }
+
+        // Create the catalogue and the rules running its rounds
+        engine = new AuctionEngine(interests, stats, events, new EngineListener());
+
+        // In sharded mode the workers own the journals, the auctions and the
+        // sales, this agent only keeps the GUI, the yellow pages and the
+        // catalogue intake
+        if (shardCount > 1) {
+            repository = new SalesRepository(SalesRepository.DEFAULT_CAPACITY);
+            startShards(shardCount, journalDirectory, preloaded);
+            preloaded.clear();
+            journalDirectory = null;
+        } else {
+            // The sales leaving the window spill next to the journal, which
+            // replays into them, or to a new file in the working directory
+            try {
+                repository = journalDirectory != null
+                        ? SalesRepository.open(new File(journalDirectory, getLocalName() + ".sales"), SalesRepository.DEFAULT_CAPACITY)
+                        : SalesRepository.create(new File(getLocalName() + ".sales"), SalesRepository.DEFAULT_CAPACITY);
+            } catch (IOException e) {
+                e.printStackTrace();
+                events.log(Level.WARN, "sales.unspilled", "agent", getLocalName());
+                repository = new SalesRepository(SalesRepository.DEFAULT_CAPACITY);
+            }
+        }
+
+        // Replay the journal: the live auctions go back to the catalogue and
+        // the recorded sales to the repository
+        if (journalDirectory != null) {
+            try {
+                journal = AuctionJournal.open(journalDirectory, getLocalName(), repository);
+                for (Auction auction : journal.getLive().values()) {
+                    openAuction(auction.markInserted());
+                }
+                events.log(Level.INFO, "journal.replayed", "auctions", engine.getCatalogue().size(), "sales", repository.getTotalSales());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        for (Auction auction : preloaded) {
+            journal(j -> j.created(auction));
+            openAuction(auction.markInserted());
+        }
 
         // Create and show the GUI 
-        myGui = new BookSellerGui(this);
-        myGui.showGui();
+        if (!headless) {
+            myGui = new BookSellerGui(this);
+            myGui.showGui();
+        }
 
         // Set the CFP template and Service
         templateCFP = new DFAgentDescription();
@@ -81,226 +249,803 @@ public class BookSellerAgent extends Agent {
         templateCFP.addServices(sdCFP);
 
         // Register the book-selling service in the yellow pages
-        DFAgentDescription dfd = new DFAgentDescription();
-        dfd.setName(getAID());
-        ServiceDescription sd = new ServiceDescription();
-        sd.setType(agentType);
-        sd.setName("JADE-book-seller");
-        dfd.addServices(sd);
-        try {
-            DFService.register(this, dfd);
-        } catch (FIPAException fe) {
-            fe.printStackTrace();
+        if (!shardWorker) {
+            DFAgentDescription dfd = new DFAgentDescription();
+            dfd.setName(getAID());
+            ServiceDescription sd = new ServiceDescription();
+            sd.setType(agentType);
+            sd.setName("JADE-book-seller");
+            dfd.addServices(sd);
+            try {
+                DFService.register(this, dfd);
+            } catch (FIPAException fe) {
+                fe.printStackTrace();
+            }
         }
 
+        // Add the behaviour ingesting the catalogues sent by other agents,
+        // and the import of the start-up catalogue file
+        addBehaviour(new CatalogueRequestsServer());
+        if (importFile != null) {
+            try {
+                addBehaviour(new CatalogueIngestion(CatalogueImporter.open(importFile), null));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // The coordinator hands every auction to a worker and runs none
+        if (shards != null) {
+            return;
+        }
+
+        // A worker receives its auctions from the coordinator as O2A objects
+        if (shardWorker) {
+            ShardIntake intake = new ShardIntake();
+            setEnabledO2ACommunication(true, 0);
+            setO2AManager(intake);
+            addBehaviour(intake);
+        }
+
+        // Subscribe to the book-buying agents, the DF notifies us of every
+        // registration and deregistration so the ticks never search it
+        buyersSubscription = DFService.createSubscriptionMessage(this, getDefaultDF(), templateCFP, null);
+        addBehaviour(new BuyersSubscriptionHandler());
+        addBehaviour(new InterestsHandler());
+        send(buyersSubscription);
+
         //***********************************   DURING THE ROUND BEHAVIOUR  ***********************************
-        // Add the behaviour announcing auctions to buyers
+        // Add the behaviour announcing auctions to buyers as they change
         //addBehaviour(new AnnounceAuctionsServer());
-        addBehaviour(new TickerBehaviour(this, 2500) {
-            @Override
-            protected void onTick() {
-                //We use an iterator so we can removing the current auction from the catalogue doesnt break the loop
-                Iterator<Auction> auctionIt = catalogue.iterator();
-                Auction auction;
-                try {
-                    // Get the available CFP receivers
-                    DFAgentDescription[] result = DFService.search(myAgent, templateCFP);
-
-                    //For each of the auctions
-                    while (auctionIt.hasNext()) {
-                        auction = auctionIt.next();
-
-                        // We clear the old receivers
-                        auction.getCFP().clearAllReceiver();
-
-                        //We add the new receivers to the auctions CDP message
-                        System.out.println("Found the following book-buying agents:");
-                        for (int i = 0; i < result.length; ++i) {
-                            auction.getCFP().addReceiver(result[i].getName());
-                            System.out.println(" " + result[i].getName());
-                        }
-                        // We send the message to the receivers
-                        myAgent.send(auction.getCFP());
-                    }
-                } catch (FIPAException fe) {
-                    fe.printStackTrace();
+        announcer = new CfpAnnouncer();
+        addBehaviour(announcer);
+
+        // Add the behaviour routing every offer reply to its auction
+        addBehaviour(new OfferRepliesDispatcher());
+
+        // Add the behaviour running the purchase orders of the closed auctions
+        trades = new TradePipeline();
+        addBehaviour(trades);
+
+        // Add the behaviour group-committing the journal
+        if (journal != null) {
+            addBehaviour(new TickerBehaviour(this, journalCommitPeriod) {
+                @Override
+                protected void onTick() {
+                    journal(j -> j.commit());
                 }
+            });
+        }
+
+        //***********************************   END OF ROUND BEHAVIOUR  ***********************************
+        // Add the behaviour closing each auction's round at its own deadline
+        roundCloser = new RoundCloser();
+        addBehaviour(roundCloser);
+    }
+
+    /**
+     * Inner class EngineListener. Runs what the AuctionEngine decides: the
+     * changed auctions wake the CfpAnnouncer, round changes go to the
+     * journal and the closed auctions to the TradePipeline.
+     */
+    private class EngineListener implements AuctionEngine.Listener {
+
+        @Override
+        public void changed() {
+            if (announcer != null) {
+                announcer.restart();
             }
-        });
+        }
 
-        //***********************************   EACH 10 SECONDS BEHAVIOUR  ***********************************
-        // Add a TickerBehaviour that schedules a request to seller agents every 10 seconds
-        addBehaviour(new TickerBehaviour(this, roundDuration) {
-            @Override
-            protected void onTick() {
-                //We use an iterator so we can remove the current auction from the catalogue
-                Iterator<Auction> auctionIt = catalogue.iterator();
-                Auction auction;
-
-                //For each of the auctions
-                while (auctionIt.hasNext()) {
-                    auction = auctionIt.next();
-
-                    //***********************************   END OF ROUND BEHAVIOUR   ***********************************
-                    //We clear this round's buyers and it gets saved in lastRoundBuyers array
-                    auction.pushBuyersList();
-
-                    // Prepare the template to get proposals
-                    MessageTemplate mt = MessageTemplate.and(
-                            MessageTemplate.MatchConversationId(offerMessageType),
-                            MessageTemplate.MatchInReplyTo(auction.getCFP().getReplyWith()));
-
-                    // Receive all proposals/refusals from buyer agents
-                    ACLMessage reply = myAgent.receive(mt);
-
-                    //We save the proposals
-                    while (reply != null) {
-                        // Reply received, we add the sender to the buyers list
-                        if (reply.getPerformative() == ACLMessage.ACCEPT_PROPOSAL && !auction.getBuyers().contains(reply.getSender())) {
-                            auction.getBuyers().add(reply.getSender());
-                        } else if (reply.getPerformative() == ACLMessage.REJECT_PROPOSAL && auction.getBuyers().contains(reply.getSender())) {
-                            auction.getBuyers().remove(reply.getSender());
-                        }
-                        reply = myAgent.receive(mt);
-                    }
+        @Override
+        public void roundAdvanced(Auction auction) {
+            journal(j -> j.roundAdvanced(auction));
+        }
 
-                    // We need to check the list after reading every message
-                    if (auction.getBuyers().isEmpty()) {
-                        // If it's the first round, it means no one saw or wanted our offer, we dont go to the next round
-                        if (auction.getRound() == 0) {
-                            continue;
-                        }
-
-                        // If people loose interest in a later round we could end up with a double empty array
-                        if (auction.getLastRoundBuyers().isEmpty()) {
-                            auction.resetAuction();
-                            continue;
-                        }
-
-                        // We remove the auction from the list
-                        auctionIt.remove();
-
-                        // Add the behaviour starting the trade 
-                        addBehaviour(new TradeController(auction, "last round"));
-                        continue;
-                    }
+        @Override
+        public void reset(Auction auction) {
+            journal(j -> j.reset(auction));
+        }
+
+        @Override
+        public void closed(Trade trade) {
+            trades.start(trade);
+        }
+    }  // End of inner class EngineListener
+
+    /**
+     * A write to the journal
+     */
+    private interface JournalWrite {
+
+        void write(AuctionJournal journal) throws IOException;
+    }
+
+    /**
+     * Writes to the journal if it is enabled. A journal that fails is closed
+     * and disabled, the auctions keep running in memory.
+     *
+     * @param write
+     */
+    private void journal(JournalWrite write) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            write.write(journal);
+        } catch (IOException e) {
+            e.printStackTrace();
+            events.log(Level.ERROR, "journal.disabled", "error", e);
+            try {
+                journal.close();
+            } catch (IOException ignored) {
+                // Already failing
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Adds an auction to the catalogue and schedules the end of its first
+     * round
+     *
+     * @param auction
+     */
+    private void openAuction(Auction auction) {
+        engine.open(auction, System.currentTimeMillis());
+        if (roundCloser != null) {
+            roundCloser.restart();
+        }
+    }
+
+    /**
+     * Adds a batch of auctions to the catalogue, waking the RoundCloser once
+     *
+     * @param auctions
+     */
+    private void openAuctions(List<Auction> auctions) {
+        if (shards != null) {
+            routeToShards(auctions);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Auction auction : auctions) {
+            journal(j -> j.created(auction));
+            engine.open(auction.markInserted(), now);
+        }
+        if (roundCloser != null) {
+            roundCloser.restart();
+        }
+    }
+
+    /**
+     * Starts the worker agents of a sharded seller, named after this agent
+     * so a restarted seller replays the same journals, each with its share of
+     * the preloaded auctions
+     *
+     * @param count number of workers
+     * @param journalDirectory the workers' journal directory, or null
+     * @param preloaded
+     */
+    private void startShards(int count, File journalDirectory, List<Auction> preloaded) {
+        List<List<Auction>> slices = partition(preloaded, count);
+        shards = new AgentController[count];
+        for (int i = 0; i < count; i++) {
+            List<Object> shardArgs = new ArrayList<>();
+            shardArgs.add("shard");
+            shardArgs.add(batched ? "batched" : "");
+            shardArgs.add(journalDirectory != null ? "journal=" + journalDirectory.getPath() : "");
+            shardArgs.add(stats);
+            shardArgs.addAll(slices.get(i));
+            try {
+                shards[i] = getContainerController().createNewAgent(getLocalName() + "-shard-" + i,
+                        BookSellerAgent.class.getName(), shardArgs.toArray());
+                shards[i].start();
+            } catch (ControllerException e) {
+                e.printStackTrace();
+            }
+        }
+        events.log(Level.INFO, "shards.started", "count", count);
+    }
+
+    /**
+     * Hands every auction to the worker owning its id, one O2A object per
+     * worker
+     *
+     * @param auctions
+     */
+    private void routeToShards(List<Auction> auctions) {
+        List<List<Auction>> slices = partition(auctions, shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            if (slices.get(i).isEmpty() || shards[i] == null) {
+                continue;
+            }
+            try {
+                shards[i].putO2AObject(slices.get(i), AgentController.ASYNC);
+            } catch (StaleProxyException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param auctions
+     * @param count number of shards
+     * @return the auctions of each shard, by auction id modulo count
+     */
+    private static List<List<Auction>> partition(List<Auction> auctions, int count) {
+        List<List<Auction>> slices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            slices.add(new ArrayList<>(auctions.size() / count + 1));
+        }
+        for (Auction auction : auctions) {
+            slices.get((int) Math.floorMod(auction.getId(), (long) count)).add(auction);
+        }
+        return slices;
+    }
+
+    /**
+     * Announces auctions to the buyers that want their titles. In batched
+     * mode the buyers that target no titles share one CFP listing every
+     * auction and each buyer that did gets one CFP listing only the auctions
+     * of its titles, otherwise each auction goes in a CFP of its own.
+     *
+     * @param auctions
+     */
+    private void announce(Collection<Auction> auctions) {
+        if (auctions.isEmpty() || interests.isEmpty()) {
+            return;
+        }
+        if (!batched) {
+            for (Auction auction : auctions) {
+                Collection<AID> receivers = interests.receivers(auction.getTitle());
+                if (!receivers.isEmpty()) {
+                    sendCfp(auction, receivers);
+                }
+            }
+            return;
+        }
+        Collection<AID> untargeted = interests.getUntargeted();
+        if (!untargeted.isEmpty()) {
+            sendBatches(auctions, untargeted);
+        }
+
+        // Group the auctions by the buyers that want their titles
+        Map<AID, List<Auction>> byBuyer = new HashMap<>();
+        for (Auction auction : auctions) {
+            for (AID buyer : interests.interested(auction.getTitle())) {
+                byBuyer.computeIfAbsent(buyer, b -> new ArrayList<>()).add(auction);
+            }
+        }
+        for (Map.Entry<AID, List<Auction>> entry : byBuyer.entrySet()) {
+            sendBatches(entry.getValue(), Collections.singleton(entry.getKey()));
+        }
+    }
+
+    /**
+     * Announces to a buyer the open auctions it did not receive until its
+     * latest DF notification or INTERESTS message
+     *
+     * @param buyer
+     * @param missed
+     */
+    private void catchUp(AID buyer, List<Auction> missed) {
+        if (missed.isEmpty()) {
+            return;
+        }
+        Collection<AID> receivers = Collections.singleton(buyer);
+        if (batched) {
+            sendBatches(missed, receivers);
+        } else {
+            for (Auction auction : missed) {
+                sendCfp(auction, receivers);
+            }
+        }
+    }
+
+    /**
+     * Sends the CFP of a single auction, built from the auction's state in
+     * the message shared by every single-auction CFP
+     *
+     * @param auction
+     * @param receivers
+     */
+    private void sendCfp(Auction auction, Collection<AID> receivers) {
+        // We clear the old receivers
+        auctionCfp.clearAllReceiver();
+
+        //We add the cached receivers to the auctions CDP message
+        for (AID buyer : receivers) {
+            auctionCfp.addReceiver(buyer);
+        }
+        auctionCfp.setConversationId(offerMessageType);
+        auctionCfp.setByteSequenceContent(AuctionCodec.encodeOffer(AuctionCodec.CFP, auction.getId(), auction.getRound(),
+                auction.getCurrentPrice(), auction.getType().getCode(), auction.getTitleBytes()));
+
+        // We send the message to the receivers
+        send(auctionCfp);
+        if (EventLog.isEnabled(Level.DEBUG)) {
+            events.log(Level.DEBUG, "cfp.sent", "auction", auction.getId(), "round", auction.getRound(), "buyers", receivers.size());
+        }
+        stats.cfpSent(receivers.size(), 1);
+    }
+
+    /**
+     * Sends auctions to the same receivers in CFPs of up to MAX_RECORDS
+     * offer records
+     *
+     * @param auctions
+     * @param receivers
+     */
+    private void sendBatches(Collection<Auction> auctions, Collection<AID> receivers) {
+        Iterator<Auction> auctionIt = auctions.iterator();
+        List<Auction> batch = new ArrayList<>(Math.min(auctions.size(), AuctionCodec.MAX_RECORDS));
+        while (auctionIt.hasNext()) {
+            batch.clear();
+            while (auctionIt.hasNext() && batch.size() < AuctionCodec.MAX_RECORDS) {
+                batch.add(auctionIt.next());
+            }
+            int size = AuctionCodec.HEADER_SIZE;
+            for (Auction auction : batch) {
+                size += AuctionCodec.offerSize(auction.getTitleBytes());
+            }
+            byte[] content = new byte[size];
+            AuctionCodec.writeHeader(content, AuctionCodec.CFP, batch.size());
+            int offset = AuctionCodec.HEADER_SIZE;
+            for (Auction auction : batch) {
+                offset = AuctionCodec.writeOffer(content, offset, auction.getId(), auction.getRound(),
+                        auction.getCurrentPrice(), auction.getType().getCode(), auction.getTitleBytes());
+            }
+
+            ACLMessage cfp = new ACLMessage(ACLMessage.CFP);
+            cfp.setConversationId(offerMessageType);
+            cfp.setReplyWith("cfp-batch-" + (++batchCount)); // Unique value
+            cfp.setByteSequenceContent(content);
+            for (AID buyer : receivers) {
+                cfp.addReceiver(buyer);
+            }
+            send(cfp);
+            if (EventLog.isEnabled(Level.DEBUG)) {
+                events.log(Level.DEBUG, "cfp.batch", "offers", batch.size(), "buyers", receivers.size());
+            }
+            stats.cfpSent(receivers.size(), batch.size());
+        }
+    }
+
+    /**
+     * Inner class RoundCloser. This is the behaviour used by Book-seller
+     * agents to close every round whose deadline has passed, and then sleep
+     * until the next deadline.
+     */
+    private class RoundCloser extends CyclicBehaviour {
+
+        @Override
+        public void action() {
+            engine.closeDue(System.currentTimeMillis());
+            long next = engine.nextDeadline();
+            if (next == Long.MAX_VALUE) {
+                block();
+            } else {
+                block(Math.max(1, next - System.currentTimeMillis()));
+            }
+        }
+    }  // End of inner class RoundCloser
 
-                    //If there is only one porposal the buyer wins the auction
-                    if (auction.getBuyers().size() == 1) {
-                        // We remove the auction from the list
-                        auctionIt.remove();
+    /**
+     * Inner class CfpAnnouncer. This is the behaviour used by Book-seller
+     * agents to announce the auctions opened or moved to another round, once
+     * per change instead of on every tick. It sleeps until an auction
+     * changes.
+     */
+    private class CfpAnnouncer extends CyclicBehaviour {
+
+        @Override
+        public void action() {
+            Collection<Auction> changed = engine.getChanged();
+            if (changed.isEmpty()) {
+                block();
+                return;
+            }
+            announce(changed);
+            engine.announced(System.currentTimeMillis());
+        }
+    }  // End of inner class CfpAnnouncer
+
+    /**
+     * Inner class BuyersSubscriptionHandler. This is the behaviour used by
+     * Book-seller agents to keep the buyers cache up to date with the DF
+     * notifications. An agent notified without services has deregistered,
+     * a new buyer targeting titles is asked for them.
+     */
+    private class BuyersSubscriptionHandler extends CyclicBehaviour {
 
-                        // Add the behaviour starting the trade 
-                        addBehaviour(new TradeController(auction, "this round"));
-                        continue;
+        private final MessageTemplate mt = MessageTemplate.and(
+                MessageTemplate.MatchSender(getDefaultDF()),
+                MessageTemplate.MatchConversationId(buyersSubscription.getConversationId()));
+
+        @Override
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            if (msg.getPerformative() != ACLMessage.INFORM) {
+                return;
+            }
+            try {
+                for (DFAgentDescription dfd : DFService.decodeNotification(msg.getContent())) {
+                    // Newly discovered buyers get the current rounds
+                    AID buyer = dfd.getName();
+                    boolean targeting = interests.titles(buyer) != null;
+                    catchUp(buyer, engine.updateInterests(dfd));
+                    if (!targeting && interests.titles(buyer) != null) {
+                        subscribeInterests(buyer);
                     }
+                }
+            } catch (FIPAException fe) {
+                fe.printStackTrace();
+            }
+        }
+    }  // End of inner class BuyersSubscriptionHandler
+
+    /**
+     * Asks a buyer targeting titles for them: it answers with every title it
+     * wants and then sends the changes until we cancel
+     *
+     * @param buyer
+     */
+    private void subscribeInterests(AID buyer) {
+        ACLMessage subscribe = new ACLMessage(ACLMessage.SUBSCRIBE);
+        subscribe.addReceiver(buyer);
+        subscribe.setConversationId(interestsMessageType);
+        send(subscribe);
+    }
+
+    /**
+     * Inner class InterestsHandler. This is the behaviour used by Book-seller
+     * agents to apply the titles the buyers they subscribed to start and stop
+     * wanting. The buyers it announces new titles to get their current
+     * rounds.
+     */
+    private class InterestsHandler extends CyclicBehaviour {
+
+        private final MessageTemplate mt = MessageTemplate.and(
+                MessageTemplate.MatchPerformative(ACLMessage.INFORM),
+                MessageTemplate.MatchConversationId(interestsMessageType));
+        private final AuctionCodec.Reader reader = new AuctionCodec.Reader();
+        private final List<String> added = new ArrayList<>();
+        private final List<String> removed = new ArrayList<>();
 
-                    //***********************************   NEW ROUND BEHAVIOUR   ***********************************
-                    // if there is more than one buyer ot CFP is null we create a new CFP
-                    // Increment round and set new CFP
-                    auction.incrementRound();
-                    auction.resetCFP();
-                    System.out.println("New auction round " + auction.getRound() + " for " + auction.getTitle() + " : " + auction.getId() + " for " + auction.getCurrentPrice() + "€");
+        @Override
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            if (!reader.wrap(msg.getByteSequenceContent()) || reader.type() != AuctionCodec.INTERESTS) {
+                return;
+            }
+            while (reader.next()) {
+                if (reader.added()) {
+                    added.add(reader.title());
+                } else {
+                    removed.add(reader.title());
                 }
             }
-        });
+            engine.removeInterests(msg.getSender(), removed);
+            catchUp(msg.getSender(), engine.addInterests(msg.getSender(), added));
+            added.clear();
+            removed.clear();
+        }
+    }  // End of inner class InterestsHandler
+
+    /**
+     * Inner class OfferRepliesDispatcher. This is the behaviour used by
+     * Book-seller agents to drain the offer replies from the inbox as they
+     * arrive and buffer them in their auction's reply buffer. Every
+     * AuctionCodec proposal record is routed by its auction id, records for an
+     * older round are dropped.
+     */
+    private class OfferRepliesDispatcher extends CyclicBehaviour {
+
+        private final MessageTemplate mt = MessageTemplate.MatchConversationId(offerMessageType);
+        private final AuctionCodec.Reader reader = new AuctionCodec.Reader();
+
+        @Override
+        public void action() {
+            ACLMessage reply = myAgent.receive(mt);
+            if (reply == null) {
+                block();
+                return;
+            }
+            boolean due = false;
+            while (reply != null) {
+                if (reader.wrap(reply.getByteSequenceContent()) && reader.type() == AuctionCodec.PROPOSAL) {
+                    stats.offerReplyReceived(reader.count());
+                    long now = System.currentTimeMillis();
+                    while (reader.next()) {
+                        due |= engine.reply(reader.id(), reader.round(), reply.getSender(), reader.accepted(), reader.bid(), now);
+                    }
+                }
+                reply = myAgent.receive(mt);
+            }
+            if (due) {
+                roundCloser.restart();
+            }
+            stats.sellerQueueSampled(myAgent.getCurQueueSize());
+        }
+    }  // End of inner class OfferRepliesDispatcher
+
+    /**
+     * @return the number of purchase orders waiting for an answer
+     */
+    public int getTradesInFlight() {
+        return trades != null ? trades.inFlight.size() : 0;
     }
 
     /**
-     * Inner class TradeController. This is the behaviour used by Book-seller
-     * agents to controll the sell.
+     * Inner class ShardIntake. This is the behaviour used by the workers of a
+     * sharded seller to open the auctions the coordinator hands them as O2A
+     * objects, a list of auctions per object
+     */
+    private class ShardIntake extends CyclicBehaviour {
+
+        @Override
+        public void action() {
+            Object slice = myAgent.getO2AObject();
+            if (slice == null) {
+                block();
+                return;
+            }
+            while (slice != null) {
+                @SuppressWarnings("unchecked")
+                List<Auction> auctions = (List<Auction>) slice;
+                openAuctions(auctions);
+                slice = myAgent.getO2AObject();
+            }
+        }
+    }  // End of inner class ShardIntake
+
+    /**
+     * Inner class TradePipeline. This is the behaviour used by Book-seller
+     * agents to controll the sells. Every closed auction gets a purchase order
+     * to its winner and all the orders are in flight at the same time, indexed
+     * by their reply-with. An order that is refused or not answered within
+     * tradeTimeout falls back to the next bidder; once every bidder has been
+     * tried the auction is reset and returned to the catalogue. A bidder that
+     * agrees after its order timed out gets a CANCEL, the sale has already
+     * moved on without it.
      */
-    private class TradeController extends Behaviour {
+    private class TradePipeline extends CyclicBehaviour {
+
+        private final MessageTemplate mt = MessageTemplate.MatchConversationId(tradeMessageType);
+
+        // Orders waiting for an answer, by reply-with
+        private final Map<String, Trade> inFlight = new HashMap<>();
 
-        private final Auction auction;
-        private final String option;
-        private MessageTemplate mt; // The template to receive replies
-        private ACLMessage reply;
-        private Boolean isDone;
+        // Reply-with keys of the orders in the order they expire
+        private final ArrayDeque<String> expiring = new ArrayDeque<>();
+        private final Map<String, Long> expiries = new HashMap<>();
 
-        private TradeController(Auction auction, String option) {
-            super();
-            this.auction = auction;
-            this.option = option;
-            this.isDone = false;
-            this.reply = null;
+        // Orders that timed out within the tombstoneTimeout, by reply-with in
+        // the order they timed out
+        private final LinkedHashMap<String, TimedOutOrder> timedOut = new LinkedHashMap<>();
+
+        /**
+         * Starts selling a closed auction
+         *
+         * @param trade the auction and its bidders
+         */
+        private void start(Trade trade) {
+            sendOrder(trade);
+            restart();
+        }
+
+        @Override
+        public void action() {
+            // Purchase order replies received
+            ACLMessage reply = myAgent.receive(mt);
+            while (reply != null) {
+                Trade trade = inFlight.remove(reply.getInReplyTo());
+                if (trade != null) {
+                    expiries.remove(reply.getInReplyTo());
+                    finishOrder(trade, reply);
+                } else {
+                    TimedOutOrder late = timedOut.remove(reply.getInReplyTo());
+                    if (late != null && reply.getPerformative() == ACLMessage.AGREE) {
+                        cancelOrder(late, reply);
+                    }
+                }
+                reply = myAgent.receive(mt);
+            }
+
+            // Forget the orders timed out before the tombstoneTimeout, the oldest come first
+            long now = System.currentTimeMillis();
+            Iterator<TimedOutOrder> tombstones = timedOut.values().iterator();
+            while (tombstones.hasNext() && tombstones.next().at + tombstoneTimeout <= now) {
+                tombstones.remove();
+            }
+
+            // Purchase orders not answered in time
+            while (!expiring.isEmpty()) {
+                String key = expiring.peek();
+                Long expiry = expiries.get(key);
+                if (expiry != null && expiry > now) {
+                    break;
+                }
+                expiring.poll();
+                if (expiry != null) {
+                    expiries.remove(key);
+                    Trade trade = inFlight.remove(key);
+                    events.log(Level.INFO, "trade.timeout", "auction", trade.auction.getId(), "buyer", trade.candidates.get(trade.next - 1).getLocalName());
+                    stats.tradeTimedOut();
+                    timedOut.put(key, new TimedOutOrder(trade, trade.next - 1, now));
+                    sendOrder(trade);
+                }
+            }
+
+            if (expiring.isEmpty()) {
+                block();
+            } else {
+                block(Math.max(1, expiries.getOrDefault(expiring.peek(), now) - System.currentTimeMillis()));
+            }
         }
 
-        public void finishTrade() {
-            // Purchase order reply received
-            isDone = true;
+        private void finishOrder(Trade trade, ACLMessage reply) {
+            stats.tradeAnswered(System.nanoTime() - trade.sentAt);
 
             // Purchase successful. We can terminate
             if (reply.getPerformative() == ACLMessage.AGREE) {
-                Integer price = (option.equals("last round")) ? auction.getLastRoundPrice() : auction.getCurrentPrice();
-                System.out.println(auction.getTitle() + " successfully purchased from agent " + reply.getSender().getName() + " for " + price + "€");
-                repository.put(reply.getInReplyTo(), auction);
+                events.log(Level.INFO, "trade.sold", "auction", trade.auction.getId(), "title", trade.auction.getTitle(),
+                        "buyer", reply.getSender().getLocalName(), "price", trade.price());
+                long time = System.currentTimeMillis();
+                try {
+                    long sequence = repository.add(trade.auction.getId(), trade.auction.getTitle(), reply.getSender().getName(), trade.price(), time);
+                    journal(j -> j.sold(trade.auction, sequence, reply.getSender(), trade.price(), time));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                stats.auctionClosed(trade.auction);
                 return;
             }
 
-            // Purchase unsuccessful. We reset the auction and return it to the catalogue
-            System.out.println("Attempt failed: buyer no longer interested");
-            auction.resetAuction();
-            catalogue.add(auction);
+            // Purchase unsuccessful. We try the next bidder
+            events.log(Level.INFO, "trade.refused", "auction", trade.auction.getId(), "buyer", reply.getSender().getLocalName());
+            stats.tradeRefused();
+            sendOrder(trade);
         }
 
-        public void action() {
-            // If the Behaviour was blocked while waiting for the answer and has been reawaken
-            if (reply != null) {
-                this.finishTrade();
-            }
-            if (isDone) {
+        /**
+         * Answers the AGREE to a timed-out order with a CANCEL carrying the
+         * order's record, so the buyer refunds the price and wants the title
+         * again
+         *
+         * @param late
+         * @param reply
+         */
+        private void cancelOrder(TimedOutOrder late, ACLMessage reply) {
+            Auction auction = late.trade.auction;
+            ACLMessage cancel = reply.createReply();
+            cancel.setPerformative(ACLMessage.CANCEL);
+            cancel.setConversationId(tradeMessageType);
+            cancel.setByteSequenceContent(AuctionCodec.encodeOffer(AuctionCodec.TRADE, auction.getId(), late.trade.round(late.candidate),
+                    late.trade.price(late.candidate), auction.getType().getCode(), auction.getTitleBytes()));
+            myAgent.send(cancel);
+            events.log(Level.WARN, "trade.cancelled", "auction", auction.getId(), "buyer", reply.getSender().getLocalName());
+        }
+
+        // Sends the purchase order to the next bidder, or returns the auction to the catalogue
+        private void sendOrder(Trade trade) {
+            Auction auction = trade.auction;
+            if (trade.next >= trade.candidates.size()) {
+                stats.tradeFailed();
+                engine.tradeFailed(auction, System.currentTimeMillis());
+                roundCloser.restart();
                 return;
             }
 
             // Set the purchase order
+            AID buyer = trade.candidates.get(trade.next++);
             ACLMessage order = new ACLMessage(ACLMessage.PROPOSE);
             order.setConversationId(tradeMessageType);
-            AID seller = (option.equals("last round")) ? auction.getLastRoundBuyers().get(0) : auction.getBuyers().get(0);
-            order.addReceiver(seller);
-            String content = (option.equals("last round")) ? auction.getTitle() + "-" + auction.getLastRoundPrice() : auction.getTitle() + "-" + auction.getCurrentPrice();
-            order.setContent(content);
-            order.setReplyWith("order-" + System.currentTimeMillis());
+            order.addReceiver(buyer);
+            order.setByteSequenceContent(AuctionCodec.encodeOffer(AuctionCodec.TRADE, auction.getId(), trade.round(), trade.price(),
+                    auction.getType().getCode(), auction.getTitleBytes()));
+            order.setReplyWith("order-" + auction.getId() + "-" + (++orderCount)); // Unique value
 
-            // Send the purchase order to the seller that provided the best offer
+            // Send the purchase order to the bidder that provided the best offer
             myAgent.send(order);
+            trade.sentAt = System.nanoTime();
+            inFlight.put(order.getReplyWith(), trade);
+            expiring.add(order.getReplyWith());
+            expiries.put(order.getReplyWith(), System.currentTimeMillis() + tradeTimeout);
+            stats.tradeStarted();
+        }
+    }  // End of inner class TradePipeline
 
-            // Prepare the template to get the purchase order reply
-            mt = MessageTemplate.and(
-                    MessageTemplate.MatchConversationId(tradeMessageType),
-                    MessageTemplate.MatchInReplyTo(order.getReplyWith()));
+    /**
+     * A purchase order that was not answered in time: its trade, the
+     * candidate it went to and when it timed out
+     */
+    private static class TimedOutOrder {
 
-            // Receive the purchase order reply
-            reply = myAgent.receive(mt);
+        private final Trade trade;
+        private final int candidate;
+        private final long at;
 
-            // If it wasn't recceived we wait, if it was we finish the trade
-            if (reply != null) {
-                this.finishTrade();
-            } else {
-                block();
-            }
-        }
-
-        public boolean done() {
-            return (isDone);
+        private TimedOutOrder(Trade trade, int candidate, long at) {
+            this.trade = trade;
+            this.candidate = candidate;
+            this.at = at;
         }
-    }  // End of inner class RequestPerformer
+    }
 
     // Put agent clean-up operations here
     @Override
     protected void takeDown() {
+        // Cancel the buyers subscription
+        if (buyersSubscription != null) {
+            send(DFService.createCancelMessage(this, getDefaultDF(), buyersSubscription));
+        }
+
+        // Stop the INTERESTS messages of the buyers targeting titles
+        if (interests != null && !interests.isEmpty()) {
+            ACLMessage cancel = new ACLMessage(ACLMessage.CANCEL);
+            cancel.setConversationId(interestsMessageType);
+            for (AID buyer : interests.getBuyers()) {
+                if (interests.titles(buyer) != null) {
+                    cancel.addReceiver(buyer);
+                }
+            }
+            if (cancel.getAllReceiver().hasNext()) {
+                send(cancel);
+            }
+        }
+
         // Deregister from the yellow pages
-        try {
-            DFService.deregister(this);
-        } catch (FIPAException fe) {
-            fe.printStackTrace();
+        if (!shardWorker) {
+            try {
+                DFService.deregister(this);
+            } catch (FIPAException fe) {
+                fe.printStackTrace();
+            }
+        }
+
+        // Stop the workers of a sharded seller, they close their own journals
+        if (shards != null) {
+            for (AgentController shard : shards) {
+                try {
+                    if (shard != null) {
+                        shard.kill();
+                    }
+                } catch (StaleProxyException e) {
+                    e.printStackTrace();
+                }
+            }
         }
 
         // Close the GUI
-        myGui.dispose();
+        if (myGui != null) {
+            myGui.dispose();
+        }
+
+        // Stop the snapshots and leave JMX
+        if (ownStats) {
+            stats.close();
+        }
+
+        // Flush and close the journal, then the sales it flushes into
+        journal(j -> j.close());
+        try {
+            repository.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
         // Printout a dismissal message
-        System.out.println("Seller-agent " + getAID().getName() + " terminating.");
+        events.log(Level.INFO, "seller.terminated", "agent", getAID().getName());
     }
 
     /**
@@ -311,13 +1056,120 @@ public class BookSellerAgent extends Agent {
     public void addToCataloge(Auction newAuction) {
         addBehaviour(new OneShotBehaviour() {
             public void action() {
+                // The coordinator of a sharded seller hands it to its worker
+                if (shards != null) {
+                    routeToShards(Collections.singletonList(newAuction));
+                    events.log(Level.INFO, "auction.routed", "auction", newAuction.getId(), "title", newAuction.getTitle(), "price", newAuction.getOriginalPrice());
+                    return;
+                }
+
                 // Add the newAuction to the cataloge
-                catalogue.add(newAuction);
-                System.out.println(newAuction.getTitle() + " inserted with catalogue id " + newAuction.getId() + ". Price = " + newAuction.getOriginalPrice());
+                journal(j -> j.created(newAuction));
+                openAuction(newAuction.markInserted());
+                events.log(Level.INFO, "auction.inserted", "auction", newAuction.getId(), "title", newAuction.getTitle(), "price", newAuction.getOriginalPrice());
             }
         });
     }
 
+    /**
+     * Imports a CSV or JSON catalogue file in batches
+     *
+     * @param file
+     * @throws IOException if the file cannot be opened
+     */
+    public void importCatalogue(File file) throws IOException {
+        addBehaviour(new CatalogueIngestion(CatalogueImporter.open(file), null));
+    }
+
+    /**
+     * Inner class CatalogueRequestsServer. This is the behaviour used by
+     * Book-seller agents to accept catalogues from other agents: the content
+     * of each book-catalogue message is read as a CSV or JSON catalogue and
+     * ingested in batches, then the sender gets an INFORM with the accepted
+     * and rejected row counts
+     */
+    private class CatalogueRequestsServer extends CyclicBehaviour {
+
+        private final MessageTemplate mt = MessageTemplate.MatchConversationId(catalogueMessageType);
+
+        @Override
+        public void action() {
+            ACLMessage msg = myAgent.receive(mt);
+            if (msg == null) {
+                block();
+                return;
+            }
+            try {
+                String content = msg.getContent() != null ? msg.getContent() : "";
+                myAgent.addBehaviour(new CatalogueIngestion(new CatalogueImporter(new StringReader(content), msg.getSender().getLocalName()), msg));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }  // End of inner class CatalogueRequestsServer
+
+    /**
+     * Inner class CatalogueIngestion. This is the behaviour used by
+     * Book-seller agents to add a catalogue to the auctions: each activation
+     * reads one batch of rows and opens their auctions, so the scheduler keeps
+     * running the other behaviours between batches
+     */
+    private class CatalogueIngestion extends Behaviour {
+
+        private final CatalogueImporter importer;
+        private final ACLMessage request;
+        private final List<Auction> batch = new ArrayList<>(CatalogueImporter.DEFAULT_BATCH);
+        private final long start = System.nanoTime();
+
+        /**
+         * @param importer the rows
+         * @param request the message the rows came in, answered at the end, or null
+         */
+        CatalogueIngestion(CatalogueImporter importer, ACLMessage request) {
+            this.importer = importer;
+            this.request = request;
+        }
+
+        @Override
+        public void action() {
+            batch.clear();
+            try {
+                importer.next(batch, CatalogueImporter.DEFAULT_BATCH);
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    importer.close();
+                } catch (IOException ce) {
+                    ce.printStackTrace();
+                }
+            }
+            openAuctions(batch);
+        }
+
+        @Override
+        public boolean done() {
+            return importer.isDone();
+        }
+
+        @Override
+        public int onEnd() {
+            try {
+                importer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            events.log(Level.INFO, "catalogue.imported", "accepted", importer.getAccepted(), "rejected", importer.getRejected(),
+                    "ms", (System.nanoTime() - start) / 1_000_000);
+            if (request != null) {
+                ACLMessage reply = request.createReply();
+                reply.setPerformative(ACLMessage.INFORM);
+                reply.setContent("accepted=" + importer.getAccepted() + " rejected=" + importer.getRejected());
+                myAgent.send(reply);
+            }
+            return 0;
+        }
+    }  // End of inner class CatalogueIngestion
+
     /**
      * Inner class AnnounceAuctionsServer. This is the behaviour used by
      * Book-seller agents to announce the available autions so anyone can
@@ -329,30 +1181,13 @@ public class BookSellerAgent extends Agent {
         @Override
         public void action() {
             //We use an iterator so we can removing the current auction from the catalogue doesnt break the loop
-            Iterator<Auction> auctionIt = catalogue.iterator();
+            Iterator<Auction> auctionIt = engine.getCatalogue().iterator();
             Auction auction;
-            try {
-                // Get the available CFP receivers
-                DFAgentDescription[] result = DFService.search(myAgent, templateCFP);
-
-                //For each of the auctions
-                while (auctionIt.hasNext()) {
-                    auction = auctionIt.next();
 
-                    // We clear the old receivers
-                    auction.getCFP().clearAllReceiver();
-
-                    //We add the new receivers to the auctions CDP message
-                    System.out.println("Found the following book-buying agents:");
-                    for (int i = 0; i < result.length; ++i) {
-                        auction.getCFP().addReceiver(result[i].getName());
-                        System.out.println(" " + result[i].getName());
-                    }
-                    // We send the message to the receivers
-                    myAgent.send(auction.getCFP());
-                }
-            } catch (FIPAException fe) {
-                fe.printStackTrace();
+            //For each of the auctions
+            while (auctionIt.hasNext()) {
+                auction = auctionIt.next();
+                sendCfp(auction, interests.receivers(auction.getTitle()));
             }
         }
     }  // End of inner class AnnounceAuctionsServer
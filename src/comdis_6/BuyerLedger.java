@@ -0,0 +1,218 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import jade.core.AID;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Budget of a buyer and the auctions it is committed to. A commitment is an
+ * accepted round: the buyer may be sent a purchase order at that price, so
+ * the money is held until the auction is bought, dropped by the strategy or
+ * stops sending CFPs because someone else won it. There is at most one
+ * commitment per title. Auctions are told apart by their seller and id.
+ *
+ * @author aculledor
+ */
+public class BuyerLedger {
+
+    // Budget of a buyer started without one
+    public static final long UNLIMITED = Long.MAX_VALUE / 2;
+
+    private static final class Commitment {
+
+        private final AuctionKey auction;
+        private final String title;
+        private int price;
+        private long seenAt;
+
+        private Commitment(AuctionKey auction, String title) {
+            this.auction = auction;
+            this.title = title;
+        }
+    }
+
+    private final long budget;
+
+    // Time after the last CFP of an auction before its commitment is dropped IN MILISECONDS
+    private final long commitmentTimeout;
+
+    private long spent, committed;
+    private final Map<AuctionKey, Commitment> byAuction = new HashMap<>();
+    private final Map<String, Commitment> byTitle = new HashMap<>();
+
+    /**
+     * @param budget total money the buyer may spend
+     * @param commitmentTimeout time after the last CFP of an auction before
+     * its commitment is dropped, in milliseconds
+     */
+    public BuyerLedger(long budget, long commitmentTimeout) {
+        this.budget = budget;
+        this.commitmentTimeout = commitmentTimeout;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    public long getSpent() {
+        return spent;
+    }
+
+    public long getCommitted() {
+        return committed;
+    }
+
+    /**
+     * @return the money neither spent nor committed
+     */
+    public long getAvailable() {
+        return budget - spent - committed;
+    }
+
+    /**
+     * @param title
+     * @return the auction the buyer is committed to for the title, or null
+     */
+    public AuctionKey committedAuction(String title) {
+        Commitment commitment = byTitle.get(title);
+        return commitment == null ? null : commitment.auction;
+    }
+
+    /**
+     * @param title
+     * @return the price committed for the title, or -1
+     */
+    public int committedPrice(String title) {
+        Commitment commitment = byTitle.get(title);
+        return commitment == null ? -1 : commitment.price;
+    }
+
+    public boolean isCommitted(AID seller, long auctionId) {
+        return byAuction.containsKey(new AuctionKey(seller, auctionId));
+    }
+
+    public boolean isCommitted(AuctionKey auction) {
+        return byAuction.containsKey(auction);
+    }
+
+    /**
+     * @param title
+     * @param price
+     * @return true if committing to the title at the price, replacing the
+     * title's current commitment, stays within the budget
+     */
+    public boolean canCommit(String title, int price) {
+        return getAvailable() + Math.max(0, committedPrice(title)) >= price;
+    }
+
+    /**
+     * Holds the price of an accepted round, replacing the title's previous
+     * commitment
+     *
+     * @param seller
+     * @param auctionId
+     * @param title
+     * @param price
+     * @param now current time in milliseconds
+     */
+    public void commit(AID seller, long auctionId, String title, int price, long now) {
+        Commitment commitment = byTitle.get(title);
+        if (commitment != null && !commitment.auction.is(seller, auctionId)) {
+            release(commitment.auction);
+            commitment = null;
+        }
+        if (commitment == null) {
+            commitment = new Commitment(new AuctionKey(seller, auctionId), title);
+            byAuction.put(commitment.auction, commitment);
+            byTitle.put(title, commitment);
+        } else {
+            committed -= commitment.price;
+        }
+        commitment.price = price;
+        commitment.seenAt = now;
+        committed += price;
+    }
+
+    /**
+     * Drops the commitment to an auction
+     * @param seller
+     * @param auctionId
+     */
+    public void release(AID seller, long auctionId) {
+        release(new AuctionKey(seller, auctionId));
+    }
+
+    private void release(AuctionKey auction) {
+        Commitment commitment = byAuction.remove(auction);
+        if (commitment != null) {
+            byTitle.remove(commitment.title);
+            committed -= commitment.price;
+        }
+    }
+
+    /**
+     * @param seller
+     * @param auctionId
+     * @param price
+     * @return true if the auction can be bought at the price, counting the
+     * money already committed to it
+     */
+    public boolean canBuy(AID seller, long auctionId, int price) {
+        Commitment commitment = byAuction.get(new AuctionKey(seller, auctionId));
+        return getAvailable() + (commitment == null ? 0 : commitment.price) >= price;
+    }
+
+    /**
+     * Spends the price of a bought auction and drops the commitment to its
+     * title
+     *
+     * @param seller
+     * @param auctionId
+     * @param title
+     * @param price
+     */
+    public void bought(AID seller, long auctionId, String title, int price) {
+        release(seller, auctionId);
+        Commitment other = byTitle.get(title);
+        if (other != null) {
+            release(other.auction);
+        }
+        spent += price;
+    }
+
+    /**
+     * Gives back the price of a purchase the seller cancelled
+     *
+     * @param price
+     */
+    public void refund(int price) {
+        spent -= price;
+    }
+
+    /**
+     * Drops the commitments to auctions that stopped sending CFPs
+     * @param now current time in milliseconds
+     */
+    public void expire(long now) {
+        Iterator<Commitment> it = byAuction.values().iterator();
+        while (it.hasNext()) {
+            Commitment commitment = it.next();
+            if (now - commitment.seenAt > commitmentTimeout) {
+                it.remove();
+                byTitle.remove(commitment.title);
+                committed -= commitment.price;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BuyerLedger{" + "budget=" + budget + "€, spent=" + spent + "€, committed=" + committed + "€ in " + byAuction.size() + " auctions}";
+    }
+}
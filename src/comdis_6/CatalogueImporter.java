@@ -0,0 +1,402 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Incremental reader of catalogue rows (title, price, increment, and an
+ * optional round duration and AuctionType) from CSV or JSON. Rows are read
+ * in batches, so a behaviour can import a large catalogue a slice per
+ * activation without blocking the agent's scheduler.
+ *
+ * CSV: one row per line, "title,price,increment[,roundDuration[,type]]",
+ * with the type given by its label, e.g. "dutch", titles may be
+ * double-quoted, a first line starting with "title" is a header and lines
+ * starting with '#' are skipped.
+ *
+ * JSON: an array of objects, or one object per line, with the keys "title",
+ * "price", "increment" and optionally "roundDuration" and "type". Unknown
+ * keys are ignored, whatever their value, arrays and objects included.
+ * Rows without a type are English auctions.
+ *
+ * Invalid rows are counted and the first ones reported, they never stop the
+ * import.
+ *
+ * @author aculledor
+ */
+public class CatalogueImporter implements Closeable {
+
+    // Rows read per batch by default
+    public static final int DEFAULT_BATCH = 5000;
+
+    // Invalid rows reported before only counting them
+    private static final int MAX_REPORTED = 10;
+
+    private final BufferedReader in;
+    // Error reports, under the name of the rows
+    private final EventLog events;
+    private final boolean json;
+    private boolean done;
+    private long row, accepted, rejected;
+
+    // JSON scanner state
+    private int peeked = -2;
+    private final StringBuilder token = new StringBuilder();
+
+    /**
+     * @param reader the rows
+     * @param source name of the rows in the error reports
+     * @throws IOException
+     */
+    public CatalogueImporter(Reader reader, String source) throws IOException {
+        this.in = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, 1 << 16);
+        this.events = EventLog.get(source);
+
+        // JSON if the first character that is not blank opens an array or an object
+        int first;
+        in.mark(1 << 12);
+        do {
+            first = in.read();
+        } while (first != -1 && Character.isWhitespace(first));
+        in.reset();
+        this.json = first == '[' || first == '{';
+    }
+
+    /**
+     * Opens a UTF-8 catalogue file
+     * @param file
+     * @return the importer
+     * @throws IOException
+     */
+    public static CatalogueImporter open(File file) throws IOException {
+        return new CatalogueImporter(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), file.getName());
+    }
+
+    /**
+     * Reads up to max rows. Invalid, blank and comment rows count, so a
+     * file of mostly invalid rows is still read a batch at a time
+     *
+     * @param batch where the auctions of the valid rows are added
+     * @param max
+     * @return the number of auctions added
+     * @throws IOException
+     */
+    public int next(List<Auction> batch, int max) throws IOException {
+        int added = 0;
+        for (int scanned = 0; scanned < max && !done; scanned++) {
+            Auction auction = json ? nextJson() : nextCsv();
+            if (auction != null) {
+                batch.add(auction);
+                added++;
+            }
+        }
+        accepted += added;
+        return added;
+    }
+
+    /**
+     * @return true once every row has been read
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    public long getAccepted() {
+        return accepted;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public void close() throws IOException {
+        done = true;
+        in.close();
+    }
+
+    //***********************************   CSV   ***********************************
+    private Auction nextCsv() throws IOException {
+        String line = in.readLine();
+        if (line == null) {
+            done = true;
+            return null;
+        }
+        row++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#") || (row == 1 && line.regionMatches(true, 0, "title", 0, 5))) {
+            return null;
+        }
+
+        // The title may be quoted and hold commas, the numbers follow the last quote
+        String title;
+        int rest;
+        if (line.charAt(0) == '"') {
+            int close = line.indexOf('"', 1);
+            while (close >= 0 && close + 1 < line.length() && line.charAt(close + 1) == '"') {
+                close = line.indexOf('"', close + 2);
+            }
+            if (close < 0) {
+                return reject("unterminated quote");
+            }
+            title = line.substring(1, close).replace("\"\"", "\"");
+            rest = line.indexOf(',', close);
+        } else {
+            rest = line.indexOf(',');
+            title = rest < 0 ? line : line.substring(0, rest).trim();
+        }
+        if (rest < 0) {
+            return reject("missing price and increment");
+        }
+        String[] fields = line.substring(rest + 1).split(",");
+        if (fields.length < 2 || fields.length > 4) {
+            return reject("expected title,price,increment[,roundDuration[,type]]");
+        }
+        try {
+            return validate(title, Integer.parseInt(fields[0].trim()), Integer.parseInt(fields[1].trim()),
+                    fields.length >= 3 ? Integer.parseInt(fields[2].trim()) : Auction.DEFAULT_ROUND_DURATION,
+                    fields.length == 4 ? fields[3].trim() : null);
+        } catch (NumberFormatException e) {
+            return reject("not a number: " + e.getMessage());
+        }
+    }
+
+    //***********************************   JSON   ***********************************
+    private Auction nextJson() throws IOException {
+        // Skip to the next object, past the array brackets and separators
+        int c = peek();
+        while (c != '{') {
+            if (c == -1) {
+                done = true;
+                return null;
+            }
+            read();
+            c = peek();
+        }
+        read();
+        row++;
+
+        String title = null, type = null;
+        long price = Long.MIN_VALUE, increment = Long.MIN_VALUE, roundDuration = Auction.DEFAULT_ROUND_DURATION;
+        String error = null;
+        while (true) {
+            c = skipBlanks();
+            if (c == '}') {
+                read();
+                break;
+            }
+            if (c == ',') {
+                read();
+                continue;
+            }
+            if (c != '"') {
+                error = "expected a key";
+                break;
+            }
+            String key = readString();
+            if (key == null || skipBlanks() != ':') {
+                error = "expected a key and ':'";
+                break;
+            }
+            read();
+            c = skipBlanks();
+            if (c == '[' || c == '{') {
+                if (!skipNested()) {
+                    error = "unterminated " + (c == '[' ? "array" : "object");
+                    break;
+                }
+                if ("title".equals(key) || "type".equals(key) || "price".equals(key)
+                        || "increment".equals(key) || "roundDuration".equals(key)) {
+                    error = "expected a string or number for " + key;
+                    break;
+                }
+            } else if (c == '"') {
+                String value = readString();
+                if (value == null) {
+                    error = "unterminated string";
+                    break;
+                }
+                if ("title".equals(key)) {
+                    title = value;
+                } else if ("type".equals(key)) {
+                    type = value;
+                }
+            } else {
+                String value = readScalar();
+                if ("price".equals(key) || "increment".equals(key) || "roundDuration".equals(key)) {
+                    long number;
+                    try {
+                        number = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        error = "not a number for " + key + ": " + value;
+                        break;
+                    }
+                    if ("price".equals(key)) {
+                        price = number;
+                    } else if ("increment".equals(key)) {
+                        increment = number;
+                    } else {
+                        roundDuration = number;
+                    }
+                }
+            }
+        }
+        if (error != null) {
+            // Resynchronise on the end of the object
+            for (c = read(); c != '}' && c != -1; c = read()) {
+            }
+            return reject(error);
+        }
+        if (price == Long.MIN_VALUE || increment == Long.MIN_VALUE) {
+            return reject("missing price or increment");
+        }
+        if (Math.abs(price) > Integer.MAX_VALUE || Math.abs(increment) > Integer.MAX_VALUE || Math.abs(roundDuration) > Integer.MAX_VALUE) {
+            return reject("number out of range");
+        }
+        return validate(title, (int) price, (int) increment, (int) roundDuration, type);
+    }
+
+    private int peek() throws IOException {
+        if (peeked == -2) {
+            peeked = in.read();
+        }
+        return peeked;
+    }
+
+    private int read() throws IOException {
+        int c = peek();
+        peeked = -2;
+        return c;
+    }
+
+    private int skipBlanks() throws IOException {
+        int c = peek();
+        while (c != -1 && Character.isWhitespace(c)) {
+            read();
+            c = peek();
+        }
+        return c;
+    }
+
+    // Reads a string starting at its opening quote, null if it is not terminated
+    private String readString() throws IOException {
+        read();
+        token.setLength(0);
+        for (int c = read(); c != '"'; c = read()) {
+            if (c == -1 || c == '\n') {
+                return null;
+            }
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'n':
+                        c = '\n';
+                        break;
+                    case 't':
+                        c = '\t';
+                        break;
+                    case 'u':
+                        char[] hex = new char[4];
+                        for (int i = 0; i < 4; i++) {
+                            hex[i] = (char) read();
+                        }
+                        try {
+                            c = Integer.parseInt(new String(hex), 16);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        break;
+                    case -1:
+                        return null;
+                    default:
+                        break;
+                }
+            }
+            token.append((char) c);
+        }
+        return token.toString();
+    }
+
+    // Skips an array or object starting at its opening bracket, with what it
+    // nests, false if it is not closed
+    private boolean skipNested() throws IOException {
+        read();
+        int depth = 1;
+        while (depth > 0) {
+            int c = read();
+            if (c == -1) {
+                return false;
+            } else if (c == '"') {
+                for (c = read(); c != '"'; c = read()) {
+                    if (c == -1) {
+                        return false;
+                    }
+                    if (c == '\\') {
+                        read();
+                    }
+                }
+            } else if (c == '[' || c == '{') {
+                depth++;
+            } else if (c == ']' || c == '}') {
+                depth--;
+            }
+        }
+        return true;
+    }
+
+    // Reads a number, true, false or null
+    private String readScalar() throws IOException {
+        token.setLength(0);
+        for (int c = peek(); c != -1 && c != ',' && c != '}' && !Character.isWhitespace(c); c = peek()) {
+            token.append((char) read());
+        }
+        return token.toString();
+    }
+
+    //***********************************   VALIDATION   ***********************************
+    private Auction validate(String title, int price, int increment, int roundDuration, String type) {
+        if (title == null || title.trim().isEmpty()) {
+            return reject("missing title");
+        }
+        // At most 4 UTF-8 bytes per char, so it fits the codec's 16 bit length
+        if (title.length() > 0xFFFF / 4) {
+            return reject("title too long");
+        }
+        if (price < 0) {
+            return reject("negative price");
+        }
+        if (increment <= 0) {
+            return reject("increment must be positive");
+        }
+        if (roundDuration <= 0) {
+            return reject("round duration must be positive");
+        }
+        AuctionType auctionType = type == null ? AuctionType.ENGLISH : AuctionType.parse(type.trim());
+        if (auctionType == null) {
+            return reject("unknown auction type: " + type);
+        }
+        return new Auction(title.trim(), price, increment, roundDuration, auctionType);
+    }
+
+    private Auction reject(String reason) {
+        rejected++;
+        if (rejected <= MAX_REPORTED) {
+            events.log(EventLog.Level.WARN, "catalogue.rejected", "row", row, "reason", reason);
+        } else if (rejected == MAX_REPORTED + 1) {
+            events.log(EventLog.Level.WARN, "catalogue.rejected", "further", "only counted");
+        }
+        return null;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Default BiddingStrategy: bids for each wanted title in a single auction,
+ * the cheapest one on offer, and only while the budget covers every
+ * commitment. When the budget cannot cover all the titles on offer, the
+ * ones with the largest margin under their maximum price go first.
+ * Sealed-bid auctions get a bid of the maximum price, lowered to what the
+ * budget still covers. A sealed bid cannot be withdrawn, so it holds its
+ * title until the auction is decided. With proxy bidding English auctions
+ * are bid for the same way: the bid is registered with the seller as a
+ * proxy maximum and binds like a sealed bid.
+ *
+ * @author aculledor
+ */
+public class CheapestOfferStrategy implements BiddingStrategy {
+
+    // Best offer of the activation by title, reused across calls
+    private final Map<String, Offer> best = new HashMap<>();
+    private final List<Offer> chosen = new ArrayList<>();
+
+    // Auctions holding one of our sealed bids or proxy maximums
+    private final Set<AuctionKey> sealedBids = new HashSet<>();
+
+    // Registers proxy maximums in English auctions
+    private final boolean proxy;
+
+    public CheapestOfferStrategy() {
+        this(false);
+    }
+
+    /**
+     * @param proxy true to register proxy maximums in English auctions
+     */
+    public CheapestOfferStrategy(boolean proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public void decide(List<Offer> offers, BuyerLedger ledger, long now) {
+        sealedBids.removeIf(auction -> !ledger.isCommitted(auction));
+
+        // The cheapest wanted offer for each title, the latest round of an auction
+        best.clear();
+        for (Offer offer : offers) {
+            if (!offer.isWanted()) {
+                continue;
+            }
+            Offer current = best.get(offer.title);
+            AuctionKey committed = ledger.committedAuction(offer.title);
+            if (current == null
+                    || (sameAuction(current, offer) ? offer.round > current.round : offer.price < current.price)
+                    || (offer.price == current.price && committed != null && committed.is(offer.seller, offer.auctionId))) {
+                best.put(offer.title, offer);
+            }
+        }
+
+        // Largest margin first, so a short budget goes to the best deals
+        chosen.clear();
+        chosen.addAll(best.values());
+        chosen.sort((a, b) -> Integer.compare(b.maxPrice - b.price, a.maxPrice - a.price));
+        for (Offer offer : chosen) {
+            // A cheaper auction we are already in keeps the title
+            AuctionKey committedAuction = ledger.committedAuction(offer.title);
+            if (committedAuction != null && !committedAuction.is(offer.seller, offer.auctionId)
+                    && (ledger.committedPrice(offer.title) <= offer.price || sealedBids.contains(committedAuction))) {
+                continue;
+            }
+            if (offer.auctionType.isSealed() || (proxy && offer.auctionType == AuctionType.ENGLISH)) {
+                // The bid may be paid in full, it has to fit in the budget
+                long affordable = ledger.getAvailable() + Math.max(0, ledger.committedPrice(offer.title));
+                int bid = (int) Math.min(offer.maxPrice, affordable);
+                if (bid >= offer.price) {
+                    offer.setBid(bid);
+                    ledger.commit(offer.seller, offer.auctionId, offer.title, bid, now);
+                    sealedBids.add(ledger.committedAuction(offer.title));
+                }
+            } else if (ledger.canCommit(offer.title, offer.price)) {
+                offer.accept = true;
+                ledger.commit(offer.seller, offer.auctionId, offer.title, offer.price, now);
+            }
+        }
+
+        // Auctions we were in and now reject are no longer held
+        for (Offer offer : offers) {
+            if (!offer.accept && ledger.isCommitted(offer.seller, offer.auctionId)) {
+                Offer kept = best.get(offer.title);
+                if (kept == null || !sameAuction(kept, offer) || !kept.accept) {
+                    ledger.release(offer.seller, offer.auctionId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean acceptTrade(Offer order, BuyerLedger ledger) {
+        return order.isWanted() && ledger.canBuy(order.seller, order.auctionId, order.price);
+    }
+
+    // Ids are only unique per seller
+    private static boolean sameAuction(Offer a, Offer b) {
+        return a.auctionId == b.auctionId && (a.seller == null ? b.seller == null : a.seller.equals(b.seller));
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Microbenchmark of the CFP decoding on the buyer side: the old "title-price"
+ * string content parsed with String.split against the AuctionCodec reader.
+ * Prints the time and the bytes allocated per decoded message.
+ *
+ * Usage: java -cp jade.jar:build/classes comdis_6.CodecBenchmark [iterations]
+ *
+ * @author aculledor
+ */
+public class CodecBenchmark {
+
+    private static final int TITLES = 64;
+
+    // Keeps the JIT from removing the decoding
+    private static long sink;
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+
+        String[] strings = new String[TITLES];
+        byte[][] messages = new byte[TITLES][];
+        for (int i = 0; i < TITLES; i++) {
+            String title = "book" + i;
+            strings[i] = title + "-" + (10 + i);
+            messages[i] = AuctionCodec.encodeOffer(AuctionCodec.CFP, 1_000_000L + i, 3, 10 + i,
+                    AuctionType.ENGLISH.getCode(), AuctionCodec.encodeTitle(title));
+        }
+        AuctionCodec.Reader reader = new AuctionCodec.Reader();
+
+        // Warm up both paths before measuring
+        for (int run = 0; run < 2; run++) {
+            boolean report = run == 1;
+            measure("string split", iterations, report, () -> {
+                for (int i = 0; i < iterations; i++) {
+                    String content = strings[i & (TITLES - 1)];
+                    String title = content.split("-")[0];
+                    int price = Integer.parseInt(content.split("-")[1]);
+                    sink += title.length() + price;
+                }
+            });
+            measure("AuctionCodec", iterations, report, () -> {
+                for (int i = 0; i < iterations; i++) {
+                    reader.wrap(messages[i & (TITLES - 1)]);
+                    while (reader.next()) {
+                        sink += reader.title().length() + reader.price() + reader.id() + reader.round();
+                    }
+                }
+            });
+        }
+        System.out.println("encoded size: string " + strings[TITLES - 1].length() + " bytes, codec " + messages[TITLES - 1].length + " bytes (sink " + (sink & 1) + ")");
+    }
+
+    private static void measure(String name, int iterations, boolean report, Runnable decoding) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        decoding.run();
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+        if (report) {
+            System.out.printf("%-13s: %6.1f ns/msg, %6.1f bytes allocated/msg%n", name,
+                    (double) elapsed / iterations, (double) allocated / iterations);
+        }
+    }
+}
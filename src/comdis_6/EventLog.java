@@ -0,0 +1,282 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured event log shared by the agents of a JVM. An event
+ * is a name and up to four key/value pairs; the calling thread only claims a
+ * slot of a ring buffer and stores the references, the formatting and the
+ * console write happen on a daemon writer thread. Events below the level are
+ * discarded before anything is stored, and events that find the ring full
+ * are dropped and counted, so the agents never wait for the console.
+ *
+ * Lines look like "12:00:01.250 INFO seller-0 trade.sold auction=42
+ * title=book7 price=31". The level is read from the comdis.log.level system
+ * property, INFO by default.
+ *
+ * @author aculledor
+ */
+public final class EventLog {
+
+    public enum Level {
+        ERROR, WARN, INFO, DEBUG, TRACE
+    }
+
+    // Slots of the ring buffer, a power of two
+    private static final int CAPACITY = 1 << 13;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final class Event {
+
+        // Sequence of the event stored in the slot, published last
+        private volatile long sequence = -1;
+        private Level level;
+        private long time;
+        private String source, name;
+        private final String[] keys = new String[4];
+        private final Object[] values = new Object[4];
+        private int pairs;
+    }
+
+    private static final Event[] ring = new Event[CAPACITY];
+    private static final AtomicLong claimed = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // Next sequence the writer reads, only written by the writer
+    private static volatile long consumed;
+    // Sequences below it are on the console, only written by the writer
+    private static volatile long written;
+    // True while the writer is parked on an empty ring, producers unpark it
+    private static volatile boolean idle;
+    // Monitor flush waits on, notified every time the writer catches up
+    private static final Object caughtUp = new Object();
+
+    private static volatile Level level = parseLevel(System.getProperty("comdis.log.level"), Level.INFO);
+    private static volatile Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Event();
+        }
+    }
+
+    private final String source;
+
+    private EventLog(String source) {
+        this.source = source;
+    }
+
+    /**
+     * @param source the name printed with every event, e.g. the agent's
+     * local name
+     * @return a log for the source
+     */
+    public static EventLog get(String source) {
+        return new EventLog(source);
+    }
+
+    public static void setLevel(Level level) {
+        EventLog.level = level;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * @param label a level name in any case
+     * @param fallback
+     * @return the level, or the fallback if the label is null or unknown
+     */
+    public static Level parseLevel(String label, Level fallback) {
+        if (label != null) {
+            for (Level candidate : Level.values()) {
+                if (candidate.name().equalsIgnoreCase(label.trim())) {
+                    return candidate;
+                }
+            }
+        }
+        return fallback;
+    }
+
+    /**
+     * Callers guard loops and costly values with it
+     *
+     * @param level
+     * @return true if events of the level are logged
+     */
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= EventLog.level.ordinal();
+    }
+
+    /**
+     * @return the events dropped because the ring was full
+     */
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public void log(Level level, String event) {
+        if (isEnabled(level)) {
+            publish(level, event, 0, null, null, null, null, null, null, null, null);
+        }
+    }
+
+    public void log(Level level, String event, String k1, Object v1) {
+        if (isEnabled(level)) {
+            publish(level, event, 1, k1, v1, null, null, null, null, null, null);
+        }
+    }
+
+    public void log(Level level, String event, String k1, Object v1, String k2, Object v2) {
+        if (isEnabled(level)) {
+            publish(level, event, 2, k1, v1, k2, v2, null, null, null, null);
+        }
+    }
+
+    public void log(Level level, String event, String k1, Object v1, String k2, Object v2, String k3, Object v3) {
+        if (isEnabled(level)) {
+            publish(level, event, 3, k1, v1, k2, v2, k3, v3, null, null);
+        }
+    }
+
+    public void log(Level level, String event, String k1, Object v1, String k2, Object v2, String k3, Object v3, String k4, Object v4) {
+        if (isEnabled(level)) {
+            publish(level, event, 4, k1, v1, k2, v2, k3, v3, k4, v4);
+        }
+    }
+
+    private void publish(Level level, String event, int pairs, String k1, Object v1, String k2, Object v2,
+            String k3, Object v3, String k4, Object v4) {
+        // Claim a sequence whose slot the writer has already read
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        Event slot = ring[(int) sequence & MASK];
+        slot.level = level;
+        slot.time = System.currentTimeMillis();
+        slot.source = source;
+        slot.name = event;
+        slot.pairs = pairs;
+        slot.keys[0] = k1;
+        slot.values[0] = v1;
+        slot.keys[1] = k2;
+        slot.values[1] = v2;
+        slot.keys[2] = k3;
+        slot.values[2] = v3;
+        slot.keys[3] = k4;
+        slot.values[3] = v4;
+        slot.sequence = sequence;
+        startWriter();
+        // The writer sets idle before checking the slot again, so either it
+        // sees this event or we see it parked
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        synchronized (EventLog.class) {
+            if (writer == null) {
+                Thread thread = new Thread(EventLog::drain, "event-log");
+                thread.setDaemon(true);
+                thread.start();
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000)));
+                writer = thread;
+            }
+        }
+    }
+
+    // Writer loop: formats every published event in order and writes them in batches
+    private static void drain() {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss.SSS");
+        Date date = new Date();
+        StringBuilder out = new StringBuilder(8192);
+        long reportedDrops = 0;
+        while (true) {
+            long sequence = consumed;
+            Event slot = ring[(int) sequence & MASK];
+            if (slot.sequence != sequence) {
+                if (out.length() > 0) {
+                    write(out);
+                }
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    out.append("event-log dropped ").append(drops - reportedDrops).append(" events, ring full").append(System.lineSeparator());
+                    reportedDrops = drops;
+                    write(out);
+                }
+                written = sequence;
+                synchronized (caughtUp) {
+                    caughtUp.notifyAll();
+                }
+                idle = true;
+                if (slot.sequence != sequence) {
+                    LockSupport.park();
+                }
+                idle = false;
+                continue;
+            }
+            date.setTime(slot.time);
+            out.append(format.format(date)).append(' ').append(slot.level).append(' ')
+                    .append(slot.source).append(' ').append(slot.name);
+            for (int i = 0; i < slot.pairs; i++) {
+                out.append(' ').append(slot.keys[i]).append('=').append(slot.values[i]);
+                slot.values[i] = null;
+            }
+            out.append(System.lineSeparator());
+            consumed = sequence + 1;
+            if (out.length() >= 8192) {
+                write(out);
+            }
+        }
+    }
+
+    private static void write(StringBuilder out) {
+        PrintStream console = System.out;
+        console.print(out);
+        console.flush();
+        out.setLength(0);
+    }
+
+    /**
+     * Waits until the writer has written every event claimed so far
+     *
+     * @param timeout maximum wait IN MILISECONDS
+     */
+    public static void flush(long timeout) {
+        long target = claimed.get();
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (caughtUp) {
+            // The last batch is written once the writer finds the ring empty
+            long remaining = timeout;
+            while (writer != null && written < target && remaining > 0) {
+                try {
+                    caughtUp.wait(remaining);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+}
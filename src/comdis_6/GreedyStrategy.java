@@ -0,0 +1,51 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.util.List;
+
+/**
+ * BiddingStrategy of the original buyer: every offer for a wanted title
+ * within its maximum price is accepted, sealed-bid ones with a bid of that
+ * maximum, whatever the budget and the other auctions for the same title.
+ * Kept as the baseline of the benchmark. With proxy bidding the English
+ * offers are accepted with that maximum as proxy, so the seller bids for
+ * the buyer instead of asking it every round.
+ *
+ * @author aculledor
+ */
+public class GreedyStrategy implements BiddingStrategy {
+
+    // Registers proxy maximums in English auctions
+    private final boolean proxy;
+
+    public GreedyStrategy() {
+        this(false);
+    }
+
+    /**
+     * @param proxy true to register proxy maximums in English auctions
+     */
+    public GreedyStrategy(boolean proxy) {
+        this.proxy = proxy;
+    }
+
+    @Override
+    public void decide(List<Offer> offers, BuyerLedger ledger, long now) {
+        for (Offer offer : offers) {
+            if (offer.isWanted() && (offer.auctionType.isSealed() || (proxy && offer.auctionType == AuctionType.ENGLISH))) {
+                offer.setBid(offer.maxPrice);
+            } else {
+                offer.accept = offer.isWanted();
+            }
+        }
+    }
+
+    @Override
+    public boolean acceptTrade(Offer order, BuyerLedger ledger) {
+        return order.isWanted();
+    }
+}
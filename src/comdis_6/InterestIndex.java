@@ -0,0 +1,237 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import jade.core.AID;
+import jade.domain.FIPAAgentManagement.DFAgentDescription;
+import jade.domain.FIPAAgentManagement.Property;
+import jade.domain.FIPAAgentManagement.ServiceDescription;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Inverted index from book titles to the buyers that want them, built from
+ * the book-buying services in the yellow pages. A buyer that registers its
+ * titles, with the TARGETING property set to "titles" and one TITLE
+ * property per title, only receives the CFPs of those titles; a buyer that
+ * registers none receives every CFP. The entry is not modified afterwards,
+ * the buyer sends the titles it starts and stops wanting in INTERESTS
+ * messages to the sellers subscribed to it.
+ *
+ * @author aculledor
+ */
+public class InterestIndex {
+
+    // Service property marking a buyer that registers its titles
+    public static final String TARGETING = "targeting";
+    public static final String TARGETING_TITLES = "titles";
+
+    // Service property holding one wanted title
+    public static final String TITLE = "title";
+
+    private final Map<String, Set<AID>> byTitle = new HashMap<>();
+    private final Map<AID, Set<String>> titlesByBuyer = new HashMap<>();
+
+    // Buyers that receive every CFP
+    private final Set<AID> everything = new LinkedHashSet<>();
+
+    // Every known buyer
+    private final Set<AID> buyers = new LinkedHashSet<>();
+
+    /**
+     * Describes the titles a buyer wants as service properties
+     *
+     * @param sd the buyer's book-buying service, its properties are replaced
+     * @param titles
+     */
+    public static void publish(ServiceDescription sd, Collection<String> titles) {
+        sd.clearAllProperties();
+        sd.addProperties(new Property(TARGETING, TARGETING_TITLES));
+        for (String title : titles) {
+            sd.addProperties(new Property(TITLE, title));
+        }
+    }
+
+    /**
+     * Applies a DF notification about a buyer: a description without
+     * services means it deregistered. The titles are only read when the
+     * buyer starts targeting titles, afterwards they change through addTitle
+     * and removeTitle.
+     *
+     * @param dfd
+     */
+    public void update(DFAgentDescription dfd) {
+        AID buyer = dfd.getName();
+        Iterator<?> services = dfd.getAllServices();
+        if (!services.hasNext()) {
+            remove(buyer);
+            return;
+        }
+
+        boolean targeting = false;
+        Set<String> titles = new HashSet<>();
+        while (services.hasNext()) {
+            Iterator<?> properties = ((ServiceDescription) services.next()).getAllProperties();
+            while (properties.hasNext()) {
+                Property property = (Property) properties.next();
+                if (TARGETING.equals(property.getName())) {
+                    targeting = TARGETING_TITLES.equals(String.valueOf(property.getValue()));
+                } else if (TITLE.equals(property.getName()) && property.getValue() != null) {
+                    titles.add(property.getValue().toString());
+                }
+            }
+        }
+        if (!targeting) {
+            remove(buyer);
+            buyers.add(buyer);
+            everything.add(buyer);
+            return;
+        }
+        if (titlesByBuyer.containsKey(buyer)) {
+            return;
+        }
+        everything.remove(buyer);
+        buyers.add(buyer);
+        titlesByBuyer.put(buyer, new HashSet<>());
+        for (String title : titles) {
+            addTitle(buyer, title);
+        }
+    }
+
+    /**
+     * Adds a title a buyer wants
+     *
+     * @param buyer a buyer targeting titles
+     * @param title
+     * @return true if the buyer did not want the title until now, false if
+     * it did or it is not targeting titles
+     */
+    public boolean addTitle(AID buyer, String title) {
+        Set<String> titles = titlesByBuyer.get(buyer);
+        if (titles == null || !titles.add(title)) {
+            return false;
+        }
+        byTitle.computeIfAbsent(title, t -> new LinkedHashSet<>()).add(buyer);
+        return true;
+    }
+
+    /**
+     * Removes a title a buyer no longer wants
+     *
+     * @param buyer
+     * @param title
+     */
+    public void removeTitle(AID buyer, String title) {
+        Set<String> titles = titlesByBuyer.get(buyer);
+        if (titles != null && titles.remove(title)) {
+            forget(title, buyer);
+        }
+    }
+
+    /**
+     * Forgets a buyer
+     *
+     * @param buyer
+     */
+    public void remove(AID buyer) {
+        buyers.remove(buyer);
+        everything.remove(buyer);
+        Set<String> titles = titlesByBuyer.remove(buyer);
+        if (titles == null) {
+            return;
+        }
+        for (String title : titles) {
+            forget(title, buyer);
+        }
+    }
+
+    private void forget(String title, AID buyer) {
+        Set<AID> interested = byTitle.get(title);
+        if (interested != null) {
+            interested.remove(buyer);
+            if (interested.isEmpty()) {
+                byTitle.remove(title);
+            }
+        }
+    }
+
+    /**
+     * @param title
+     * @return the buyers to send the title's CFPs to
+     */
+    public Collection<AID> receivers(String title) {
+        Set<AID> interested = byTitle.get(title);
+        if (interested == null) {
+            return everything;
+        }
+        if (everything.isEmpty()) {
+            return interested;
+        }
+        List<AID> receivers = new ArrayList<>(everything.size() + interested.size());
+        receivers.addAll(everything);
+        receivers.addAll(interested);
+        return receivers;
+    }
+
+    /**
+     * @param title
+     * @return the buyers that want the title, without those that receive
+     * every CFP
+     */
+    public Collection<AID> interested(String title) {
+        Set<AID> interested = byTitle.get(title);
+        return interested == null ? Collections.<AID>emptySet() : interested;
+    }
+
+    /**
+     * @param buyer
+     * @return the titles the buyer wants, or null if it is not targeting
+     * titles
+     */
+    public Set<String> titles(AID buyer) {
+        Set<String> titles = titlesByBuyer.get(buyer);
+        return titles == null ? null : Collections.unmodifiableSet(titles);
+    }
+
+    /**
+     * @return the buyers that are not targeting titles and receive every CFP
+     */
+    public Collection<AID> getUntargeted() {
+        return everything;
+    }
+
+    /**
+     * @param title
+     * @return the number of buyers the title's CFPs go to
+     */
+    public int receiverCount(String title) {
+        Set<AID> interested = byTitle.get(title);
+        return everything.size() + (interested == null ? 0 : interested.size());
+    }
+
+    /**
+     * @return every known buyer
+     */
+    public Set<AID> getBuyers() {
+        return Collections.unmodifiableSet(buyers);
+    }
+
+    public boolean isEmpty() {
+        return buyers.isEmpty();
+    }
+
+    public int size() {
+        return buyers.size();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of latencies in nanoseconds, in the style
+ * of HdrHistogram: values under 64 get a bucket each and every power of two
+ * above is split in 32 buckets, so any value is reported within about 3% in
+ * a fixed 15 KB table. Recording is a single atomic increment and never
+ * allocates.
+ *
+ * @author aculledor
+ */
+public class LatencyHistogram {
+
+    // Linear buckets below the first power of two that is split
+    private static final int LINEAR_BITS = 6;
+    private static final int LINEAR = 1 << LINEAR_BITS;
+
+    // Buckets per power of two above LINEAR
+    private static final int SUB = LINEAR / 2;
+
+    private static final int BUCKETS = (63 - LINEAR_BITS + 1) * SUB + LINEAR;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (LINEAR_BITS - 1);
+        return shift * SUB + (int) (value >>> shift);
+    }
+
+    // Smallest value of a bucket
+    private static long lowerBound(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = index / SUB - 1;
+        return (long) (index % SUB + SUB) << shift;
+    }
+
+    // Middle value of a bucket
+    private static long midpoint(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = index / SUB - 1;
+        return lowerBound(index) + ((1L << shift) >>> 1);
+    }
+
+    /**
+     * @param latency in nanoseconds, negative values count as 0
+     */
+    public void record(long latency) {
+        long value = Math.max(0, latency);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the largest latency recorded in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean latency in nanoseconds, or 0 if none was recorded
+     */
+    public double getMean() {
+        long total = count.sum();
+        return total == 0 ? 0 : (double) sum.sum() / total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency in nanoseconds, or -1 if none was recorded
+     */
+    public long percentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(midpoint(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local harness of peripheral JADE containers: each container is a separate
+ * JVM started with jade.Boot on loopback, joining the main container at
+ * host:port, and boots with the agents placed on it. Agents are placed by
+ * load: every agent has a weight and goes to the container with the lowest
+ * total so far, so the containers end up with similar work.
+ *
+ * The same containers can be started by hand on other hosts, e.g.
+ * java -cp jade.jar:build/classes jade.Boot -container -host main-host
+ * -port 1099 -container-name node-0 -agents "buyer-0:comdis_6.BookBuyerAgent(headless,book1=40)"
+ *
+ * @author aculledor
+ */
+public class PeripheralContainers {
+
+    // Time to wait for a container to join the platform IN MILISECONDS
+    private static final int READY_TIMEOUT = 60000;
+
+    private final String host;
+    private final int port;
+    private final String[] names;
+    private final List<List<String>> agents = new ArrayList<>();
+    private final long[] loads;
+    private final List<Process> processes = new ArrayList<>();
+
+    /**
+     * @param count number of peripheral containers
+     * @param host the main container's host
+     * @param port the main container's port
+     */
+    public PeripheralContainers(int count, String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.names = new String[count];
+        this.loads = new long[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = "node-" + i;
+            agents.add(new ArrayList<>());
+        }
+    }
+
+    public int size() {
+        return names.length;
+    }
+
+    /**
+     * Places an agent on the least loaded container, before they are started
+     *
+     * @param name agent name
+     * @param agentClass
+     * @param args string arguments, they may not contain ',' ';' or
+     * parentheses
+     * @param weight the agent's expected load
+     * @return the name of the container it was placed on
+     */
+    public String place(String name, Class<?> agentClass, List<String> args, long weight) {
+        int target = 0;
+        for (int i = 1; i < loads.length; i++) {
+            if (loads[i] < loads[target]) {
+                target = i;
+            }
+        }
+        loads[target] += weight;
+        agents.get(target).add(name + ":" + agentClass.getName() + "(" + String.join(",", args) + ")");
+        return names[target];
+    }
+
+    /**
+     * @param container index of the container
+     * @return the total weight of the agents placed on it
+     */
+    public long getLoad(int container) {
+        return loads[container];
+    }
+
+    /**
+     * @param container index of the container
+     * @return the number of agents placed on it
+     */
+    public int getAgentCount(int container) {
+        return agents.get(container).size();
+    }
+
+    /**
+     * Starts one JVM per container, with the classpath of this one, and
+     * waits until every container has joined the platform
+     *
+     * @throws IOException if a JVM cannot be started or a container does not
+     * join in time
+     * @throws InterruptedException
+     */
+    public void start() throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        CountDownLatch ready = new CountDownLatch(names.length);
+        for (int i = 0; i < names.length; i++) {
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.add("-Dcomdis.log.level=" + EventLog.getLevel());
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add("jade.Boot");
+            command.add("-container");
+            command.add("-host");
+            command.add(host);
+            command.add("-port");
+            command.add(String.valueOf(port));
+            command.add("-local-host");
+            command.add(host);
+            command.add("-container-name");
+            command.add(names[i]);
+            if (!agents.get(i).isEmpty()) {
+                command.add("-agents");
+                command.add(String.join(";", agents.get(i)));
+            }
+            Process process = new ProcessBuilder(command).start();
+            processes.add(process);
+
+            // The agents' output is dropped, JADE logs that the container is ready
+            drain(process.getInputStream(), null);
+            drain(process.getErrorStream(), ready);
+        }
+        if (!ready.await(READY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            stop();
+            throw new IOException("Only " + (names.length - ready.getCount()) + " of " + names.length + " containers joined the platform");
+        }
+    }
+
+    // Reads a JVM's output on a daemon thread, counting down once on the ready line
+    private static void drain(InputStream in, CountDownLatch ready) {
+        Thread thread = new Thread(() -> {
+            boolean counted = ready == null;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (!counted && line.contains("is ready")) {
+                        ready.countDown();
+                        counted = true;
+                    }
+                }
+            } catch (IOException e) {
+                // The JVM is gone
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops every container JVM
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        }
+        processes.clear();
+    }
+}
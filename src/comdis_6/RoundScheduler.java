@@ -0,0 +1,87 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.util.PriorityQueue;
+
+/**
+ * Deadline-ordered queue of the auctions whose round is running. Every
+ * auction holds its own deadline; rescheduling an auction just pushes a new
+ * entry and the previous one is discarded when it reaches the head, so both
+ * scheduling and polling are O(log n).
+ *
+ * @author aculledor
+ */
+public class RoundScheduler {
+
+    // Deadline of an auction that is not scheduled
+    public static final long NONE = -1;
+
+    private static final class Entry {
+
+        private final long deadline;
+        private final Auction auction;
+
+        private Entry(long deadline, Auction auction) {
+            this.deadline = deadline;
+            this.auction = auction;
+        }
+    }
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>((a, b) -> Long.compare(a.deadline, b.deadline));
+
+    /**
+     * Sets the deadline of the auction's round, replacing any previous one
+     * @param auction
+     * @param deadline in milliseconds
+     */
+    public void schedule(Auction auction, long deadline) {
+        auction.setDeadline(deadline);
+        queue.add(new Entry(deadline, auction));
+    }
+
+    /**
+     * Removes the auction from the schedule
+     * @param auction
+     */
+    public void cancel(Auction auction) {
+        auction.setDeadline(NONE);
+    }
+
+    /**
+     * Takes the next auction whose deadline has passed
+     * @param now current time in milliseconds
+     * @return the auction, which is no longer scheduled, or null if none is due
+     */
+    public Auction pollDue(long now) {
+        purge();
+        Entry head = queue.peek();
+        if (head == null || head.deadline > now) {
+            return null;
+        }
+        queue.poll();
+        head.auction.setDeadline(NONE);
+        return head.auction;
+    }
+
+    /**
+     * @return the earliest deadline, or Long.MAX_VALUE if nothing is scheduled
+     */
+    public long nextDeadline() {
+        purge();
+        Entry head = queue.peek();
+        return head == null ? Long.MAX_VALUE : head.deadline;
+    }
+
+    // Drops the head entries that were rescheduled or cancelled
+    private void purge() {
+        Entry head = queue.peek();
+        while (head != null && head.auction.getDeadline() != head.deadline) {
+            queue.poll();
+            head = queue.peek();
+        }
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Repository of the successful transactions of a seller. Sales are kept as
+ * primitive columns (auction id, title id, buyer id, price, timestamp) in a
+ * ring of fixed capacity, with titles and buyers interned to ints, so a
+ * long-running seller holds a bounded window of sales and no Auction objects.
+ *
+ * An interned id lives as long as a sale of the window uses it, once the
+ * window evicts the last sale of a title or buyer its id is handed to the
+ * next new one, so the dictionaries are bounded by the window too.
+ *
+ * When a spill file is given, the sales leave the window for the file in
+ * columnar blocks:
+ * [magic:4][count:4][firstSequence:8][titles][buyers]
+ * [auctionIds:8*count][titleIds:4*count][buyerIds:4*count][prices:4*count][times:8*count]
+ * Every block carries the titles and buyers its sales use, and its columns
+ * refer to them by their position in the block. Without a spill file the
+ * sales that leave the window are dropped.
+ *
+ * Every sale gets a sequence number, the count of sales recorded before it,
+ * so a journal replay can tell which sales are already in the file.
+ *
+ * @author aculledor
+ */
+public class SalesRepository implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static final int MAGIC = 0x53414C32;
+
+    /**
+     * A sale read back from the repository
+     */
+    public static final class Sale {
+
+        private final long sequence, auctionId, time;
+        private final String title, buyer;
+        private final int price;
+
+        private Sale(long sequence, long auctionId, String title, String buyer, int price, long time) {
+            this.sequence = sequence;
+            this.auctionId = auctionId;
+            this.title = title;
+            this.buyer = buyer;
+            this.price = price;
+            this.time = time;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public long getAuctionId() {
+            return auctionId;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getBuyer() {
+            return buyer;
+        }
+
+        public int getPrice() {
+            return price;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return "Sale{" + "auction=" + auctionId + ", title=" + title + ", buyer=" + buyer + ", price=" + price + "€, time=" + time + "}";
+        }
+    }
+
+    // The window, a ring of primitive columns
+    private final int capacity;
+    private final long[] auctionIds, times, revenueBefore;
+    private final int[] titleIds, buyerIds, prices;
+    private int head, size;
+
+    // Sales recorded, and how many of them are in the spill file
+    private long nextSequence, persisted;
+    private long totalRevenue;
+
+    // Titles and buyers of the window sales
+    private final Dictionary titles = new Dictionary();
+    private final Dictionary buyers = new Dictionary();
+
+    // Revenue of every title over the window, the counts are the title uses
+    private long[] titleRevenue = new long[64];
+
+    private final File spillFile;
+    private DataOutputStream spill;
+
+    // The file under the spill stream, synced to disk on demand
+    private FileOutputStream spillOut;
+
+    /**
+     * Creates a repository that keeps only its window in memory
+     * @param capacity number of sales in the window
+     */
+    public SalesRepository(int capacity) {
+        this(capacity, null);
+    }
+
+    private SalesRepository(int capacity, File spillFile) {
+        this.capacity = capacity;
+        this.auctionIds = new long[capacity];
+        this.times = new long[capacity];
+        this.revenueBefore = new long[capacity];
+        this.titleIds = new int[capacity];
+        this.buyerIds = new int[capacity];
+        this.prices = new int[capacity];
+        this.spillFile = spillFile;
+    }
+
+    /**
+     * Opens a repository that spills to a columnar file, loading the most
+     * recent sales of the file into the window
+     *
+     * @param file the spill file
+     * @param capacity number of sales in the window
+     * @return the repository
+     * @throws IOException if the file cannot be opened or is not a sales file
+     */
+    public static SalesRepository open(File file, int capacity) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create sales directory " + directory);
+        }
+        SalesRepository repository = new SalesRepository(capacity, file);
+        if (file.exists()) {
+            repository.load();
+        }
+        repository.spillOut = new FileOutputStream(file, true);
+        repository.spill = new DataOutputStream(new BufferedOutputStream(repository.spillOut, 1 << 16));
+        return repository;
+    }
+
+    /**
+     * Opens a repository that spills to a new columnar file, replacing the
+     * one an earlier run may have left
+     *
+     * @param file the spill file
+     * @param capacity number of sales in the window
+     * @return the repository
+     * @throws IOException
+     */
+    public static SalesRepository create(File file, int capacity) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace sales file " + file);
+        }
+        return open(file, capacity);
+    }
+
+    /**
+     * Records a sale
+     * @return the sequence number of the sale
+     * @throws IOException if the window had to be spilled and the write failed
+     */
+    public long add(long auctionId, String title, String buyer, int price, long time) throws IOException {
+        if (size == capacity) {
+            if (persisted < nextSequence && spill != null) {
+                flush();
+            }
+            evictOldest();
+        }
+        append(auctionId, title, buyer, price, time);
+        return nextSequence++;
+    }
+
+    /**
+     * Records a sale replayed from a journal, unless it is already in the
+     * spill file
+     * @return true if the sale was added
+     */
+    public boolean restore(long sequence, long auctionId, String title, String buyer, int price, long time) throws IOException {
+        if (sequence < nextSequence) {
+            return false;
+        }
+        add(auctionId, title, buyer, price, time);
+        return true;
+    }
+
+    /**
+     * Sequence number the next sale will get
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Writes every sale of the window not yet in the spill file
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (spill == null) {
+            return;
+        }
+        int count = (int) (nextSequence - persisted);
+        if (count > 0) {
+            int first = (head + size - count) % capacity;
+            int[] blockTitles = new int[titles.size()];
+            int[] blockBuyers = new int[buyers.size()];
+            spill.writeInt(MAGIC);
+            spill.writeInt(count);
+            spill.writeLong(persisted);
+            writeDictionary(titles, titleIds, first, count, blockTitles);
+            writeDictionary(buyers, buyerIds, first, count, blockBuyers);
+            for (int i = 0; i < count; i++) {
+                spill.writeLong(auctionIds[(first + i) % capacity]);
+            }
+            for (int i = 0; i < count; i++) {
+                spill.writeInt(blockTitles[titleIds[(first + i) % capacity]] - 1);
+            }
+            for (int i = 0; i < count; i++) {
+                spill.writeInt(blockBuyers[buyerIds[(first + i) % capacity]] - 1);
+            }
+            for (int i = 0; i < count; i++) {
+                spill.writeInt(prices[(first + i) % capacity]);
+            }
+            for (int i = 0; i < count; i++) {
+                spill.writeLong(times[(first + i) % capacity]);
+            }
+            persisted = nextSequence;
+        }
+        spill.flush();
+    }
+
+    /**
+     * Writes every sale of the window not yet in the spill file and forces
+     * the file to disk. flush only hands the bytes to the OS, a crash can
+     * still lose them.
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        if (spill == null) {
+            return;
+        }
+        flush();
+        spillOut.getFD().sync();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (spill != null) {
+            sync();
+            spill.close();
+            spill = null;
+            spillOut = null;
+        }
+    }
+
+    //***********************************   QUERIES OVER THE WINDOW   ***********************************
+    /**
+     * @return number of sales in the window
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of sales recorded, including the ones that left the window
+     */
+    public long getTotalSales() {
+        return nextSequence;
+    }
+
+    /**
+     * @param title
+     * @return number of sales of the title in the window
+     */
+    public int countByTitle(String title) {
+        Integer titleId = titles.idOf(title);
+        return titleId == null ? 0 : titles.uses[titleId];
+    }
+
+    /**
+     * @param title
+     * @return revenue of the title in the window
+     */
+    public long revenueByTitle(String title) {
+        Integer titleId = titles.idOf(title);
+        return titleId == null ? 0 : titleRevenue[titleId];
+    }
+
+    /**
+     * @param title
+     * @return the sales of the title in the window, oldest first
+     */
+    public List<Sale> salesByTitle(String title) {
+        List<Sale> sales = new ArrayList<>();
+        Integer titleId = titles.idOf(title);
+        if (titleId == null) {
+            return sales;
+        }
+        for (int i = 0; i < size; i++) {
+            if (titleIds[(head + i) % capacity] == titleId) {
+                sales.add(saleAt(i));
+            }
+        }
+        return sales;
+    }
+
+    /**
+     * Revenue of the window sales with from &lt;= time &lt; to. Sales are
+     * recorded in time order, so this is two binary searches.
+     *
+     * @param from in milliseconds
+     * @param to in milliseconds
+     * @return the revenue
+     */
+    public long revenue(long from, long to) {
+        int lo = firstAtOrAfter(from);
+        int hi = firstAtOrAfter(to);
+        if (hi <= lo) {
+            return 0;
+        }
+        long end = hi == size ? totalRevenue : revenueBefore[(head + hi) % capacity];
+        return end - revenueBefore[(head + lo) % capacity];
+    }
+
+    /**
+     * @return the sales in the window, oldest first
+     */
+    public List<Sale> getSales() {
+        List<Sale> sales = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            sales.add(saleAt(i));
+        }
+        return sales;
+    }
+
+    // Index in the window of the first sale at or after time
+    private int firstAtOrAfter(long time) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[(head + mid) % capacity] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private Sale saleAt(int index) {
+        int slot = (head + index) % capacity;
+        long sequence = nextSequence - size + index;
+        return new Sale(sequence, auctionIds[slot], titles.valueOf(titleIds[slot]), buyers.valueOf(buyerIds[slot]), prices[slot], times[slot]);
+    }
+
+    // Puts a sale at the end of the window, which has room for it
+    private void append(long auctionId, String title, String buyer, int price, long time) {
+        int slot = (head + size) % capacity;
+        int titleId = titles.acquire(title);
+        auctionIds[slot] = auctionId;
+        titleIds[slot] = titleId;
+        buyerIds[slot] = buyers.acquire(buyer);
+        prices[slot] = price;
+        times[slot] = time;
+        revenueBefore[slot] = totalRevenue;
+        size++;
+        if (titleId >= titleRevenue.length) {
+            titleRevenue = Arrays.copyOf(titleRevenue, titleRevenue.length * 2);
+        }
+        titleRevenue[titleId] += price;
+        totalRevenue += price;
+    }
+
+    private void evictOldest() {
+        titleRevenue[titleIds[head]] -= prices[head];
+        titles.release(titleIds[head]);
+        buyers.release(buyerIds[head]);
+        head = (head + 1) % capacity;
+        size--;
+    }
+
+    /**
+     * Writes the values the ids of a block use, numbering them from 1 in
+     * positions, indexed by id, in the order they first appear
+     */
+    private void writeDictionary(Dictionary dictionary, int[] ids, int first, int count, int[] positions) throws IOException {
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int id = ids[(first + i) % capacity];
+            if (positions[id] == 0) {
+                values.add(dictionary.valueOf(id));
+                positions[id] = values.size();
+            }
+        }
+        spill.writeInt(values.size());
+        for (String value : values) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            spill.writeShort(bytes.length);
+            spill.write(bytes);
+        }
+    }
+
+    // Reads the values of a block dictionary, returning the bytes it took
+    private static long readDictionary(DataInputStream in, List<String> values) throws IOException {
+        long bytes = 4;
+        for (int count = in.readInt(); count > 0; count--) {
+            byte[] value = new byte[in.readUnsignedShort()];
+            in.readFully(value);
+            values.add(new String(value, StandardCharsets.UTF_8));
+            bytes += 2 + value.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Walks the blocks of the file, skipping their columns, then reads the
+     * blocks that fit in the window. A truncated last block, from a crash
+     * while spilling, is cut off.
+     */
+    private void load() throws IOException {
+        List<long[]> blocks = new ArrayList<>(); // {position, count}
+        long end = 0;
+        try (RandomAccessFile in = new RandomAccessFile(spillFile, "r")) {
+            long position = 0;
+            long length = in.length();
+            try {
+                while (position < length) {
+                    in.seek(position);
+                    DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(in.getFD()), 1 << 12));
+                    if (data.readInt() != MAGIC) {
+                        if (position == 0) {
+                            throw new IOException("Not a sales file " + spillFile);
+                        }
+                        break;
+                    }
+                    int count = data.readInt();
+                    long firstSequence = data.readLong();
+                    long dictionaryBytes = readDictionary(data, new ArrayList<>()) + readDictionary(data, new ArrayList<>());
+                    long next = position + 16 + dictionaryBytes + 28L * count;
+                    if (next > length || firstSequence != persisted) {
+                        break;
+                    }
+                    blocks.add(new long[]{position, count});
+                    persisted += count;
+                    position = next;
+                    end = next;
+                }
+            } catch (EOFException e) {
+                // Truncated block
+            }
+        }
+        if (end < spillFile.length()) {
+            try (RandomAccessFile out = new RandomAccessFile(spillFile, "rw")) {
+                out.setLength(end);
+            }
+        }
+        nextSequence = persisted;
+
+        // The most recent blocks that fit in the window
+        int first = blocks.size();
+        long recent = 0;
+        while (first > 0 && recent < capacity) {
+            recent += blocks.get(--first)[1];
+        }
+        long sequence = persisted - recent;
+        try (RandomAccessFile in = new RandomAccessFile(spillFile, "r")) {
+            for (int b = first; b < blocks.size(); b++) {
+                int count = (int) blocks.get(b)[1];
+                long[] ids = new long[count], blockTimes = new long[count];
+                int[] blockTitles = new int[count], blockBuyers = new int[count], blockPrices = new int[count];
+                List<String> titleValues = new ArrayList<>(), buyerValues = new ArrayList<>();
+                in.seek(blocks.get(b)[0] + 16);
+                DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(in.getFD()), 1 << 16));
+                readDictionary(data, titleValues);
+                readDictionary(data, buyerValues);
+                for (int i = 0; i < count; i++) {
+                    ids[i] = data.readLong();
+                }
+                for (int i = 0; i < count; i++) {
+                    blockTitles[i] = data.readInt();
+                }
+                for (int i = 0; i < count; i++) {
+                    blockBuyers[i] = data.readInt();
+                }
+                for (int i = 0; i < count; i++) {
+                    blockPrices[i] = data.readInt();
+                }
+                for (int i = 0; i < count; i++) {
+                    blockTimes[i] = data.readLong();
+                }
+                for (int i = 0; i < count; i++, sequence++) {
+                    if (sequence >= persisted - capacity) {
+                        if (size == capacity) {
+                            evictOldest();
+                        }
+                        append(ids[i], titleValues.get(blockTitles[i]), buyerValues.get(blockBuyers[i]), blockPrices[i], blockTimes[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Strings interned to ints. An id is released when the last sale of the
+     * window using it is evicted, and handed to the next new string.
+     */
+    private static final class Dictionary {
+
+        private final Map<String, Integer> index = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+
+        // Window sales using every id, and the released ids
+        private int[] uses = new int[64];
+        private int[] free = new int[64];
+        private int freeCount;
+
+        private Integer idOf(String value) {
+            return index.get(value);
+        }
+
+        private String valueOf(int id) {
+            return values.get(id);
+        }
+
+        // Ids handed out so far, released ones included
+        private int size() {
+            return values.size();
+        }
+
+        private int acquire(String value) {
+            Integer id = index.get(value);
+            if (id == null) {
+                if (freeCount > 0) {
+                    id = free[--freeCount];
+                    values.set(id, value);
+                } else {
+                    id = values.size();
+                    values.add(value);
+                    if (id >= uses.length) {
+                        uses = Arrays.copyOf(uses, uses.length * 2);
+                    }
+                }
+                index.put(value, id);
+            }
+            uses[id]++;
+            return id;
+        }
+
+        private void release(int id) {
+            if (--uses[id] == 0) {
+                index.remove(values.set(id, null));
+                if (freeCount == free.length) {
+                    free = Arrays.copyOf(free, free.length * 2);
+                }
+                free[freeCount++] = id;
+            }
+        }
+    }  // End of inner class Dictionary
+}
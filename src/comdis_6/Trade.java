@@ -0,0 +1,140 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import jade.core.AID;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The sale of a closed auction: the bidders to offer it to, in order, the
+ * price and round each of them is offered, and how many of them have been
+ * tried. Built by the AuctionEngine when it closes an auction.
+ *
+ * @author aculledor
+ */
+public class Trade {
+
+    final Auction auction;
+    final List<AID> candidates = new ArrayList<>();
+    private int[] prices, rounds;
+    int next;
+    long sentAt;
+
+    private Trade(Auction auction) {
+        this.auction = auction;
+    }
+
+    private void add(AID bidder, int price, int round) {
+        if (prices == null) {
+            prices = new int[4];
+            rounds = new int[4];
+        } else if (candidates.size() == prices.length) {
+            prices = Arrays.copyOf(prices, prices.length * 2);
+            rounds = Arrays.copyOf(rounds, rounds.length * 2);
+        }
+        prices[candidates.size()] = price;
+        rounds[candidates.size()] = round;
+        candidates.add(bidder);
+    }
+
+    /**
+     * The sale of an English auction. The bidders that accepted the final
+     * round pay the current price, the bidders of the round before pay
+     * the last round price.
+     *
+     * @param auction
+     * @param lastRound true if the sale goes to the last round bidders
+     * only
+     */
+    static Trade english(Auction auction, boolean lastRound) {
+        Trade trade = new Trade(auction);
+        if (!lastRound) {
+            for (AID bidder : auction.getBuyers()) {
+                trade.add(bidder, auction.getCurrentPrice(), auction.getRound());
+            }
+        }
+        for (AID bidder : auction.getLastRoundBuyers()) {
+            if (lastRound || !auction.getBuyers().contains(bidder)) {
+                trade.add(bidder, auction.getLastRoundPrice(), auction.getRound() - 1);
+            }
+        }
+        return trade;
+    }
+
+    /**
+     * The sale of a Dutch auction: the bidders, in the order they
+     * accepted, pay the current price
+     *
+     * @param auction
+     * @param bidders
+     */
+    static Trade atCurrentPrice(Auction auction, Collection<AID> bidders) {
+        Trade trade = new Trade(auction);
+        for (AID bidder : bidders) {
+            trade.add(bidder, auction.getCurrentPrice(), auction.getRound());
+        }
+        return trade;
+    }
+
+    /**
+     * The sale of a sealed-bid auction: the bidders from the highest bid
+     * down. In a first-price auction each pays its own bid, in a
+     * second-price auction each pays the bid below its own, or the
+     * reserve price if there is none.
+     *
+     * @param auction
+     * @param bids the bids at or over the reserve price
+     */
+    static Trade sealed(Auction auction, List<Map.Entry<AID, Integer>> bids) {
+        bids.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        Trade trade = new Trade(auction);
+        boolean firstPrice = auction.getType() == AuctionType.SEALED_FIRST_PRICE;
+        for (int i = 0; i < bids.size(); i++) {
+            int price;
+            if (firstPrice) {
+                price = bids.get(i).getValue();
+            } else {
+                price = i + 1 < bids.size() ? bids.get(i + 1).getValue() : auction.getCurrentPrice();
+            }
+            trade.add(bids.get(i).getKey(), price, auction.getRound());
+        }
+        return trade;
+    }
+
+    /**
+     * @return the price offered to the last candidate tried
+     */
+    int price() {
+        return price(next - 1);
+    }
+
+    /**
+     * @return the round of the offer made to the last candidate tried
+     */
+    int round() {
+        return round(next - 1);
+    }
+
+    /**
+     * @param candidate index in the candidates
+     * @return the price offered to the candidate
+     */
+    int price(int candidate) {
+        return prices[candidate];
+    }
+
+    /**
+     * @param candidate index in the candidates
+     * @return the round of the offer made to the candidate
+     */
+    int round(int candidate) {
+        return rounds[candidate];
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Index of the titles a buyer wants and the maximum price it pays for each.
+ * Titles are keyed by their UTF-8 bytes in an open-addressing table whose
+ * keys live in a single byte arena, so a CFP is decided with one probe
+ * sequence straight over the AuctionCodec buffer, without decoding the title
+ * or allocating. Each slot is [hash, length, arena offset, price] in one int
+ * array, so a probe touches a single cache line besides the key bytes.
+ *
+ * @author aculledor
+ */
+public class Wishlist {
+
+    // Returned by maxPrice for a title that is not wanted
+    public static final int NOT_WANTED = -1;
+
+    // Slot states, stored in place of the key length
+    private static final int FREE = -1;
+    private static final int DELETED = -2;
+
+    private static final int MIN_CAPACITY = 16;
+
+    // Slot layout in the table
+    private static final int HASH = 0, LENGTH = 1, OFFSET = 2, PRICE = 3, SLOT = 4;
+
+    private int[] table;
+    private int capacity, tableMask;
+    private byte[] arena = new byte[1024];
+    private int arenaSize, garbage;
+    private int size, deleted, mask;
+
+    public Wishlist() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Maximum price for a title given as UTF-8 bytes
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @return the price, or NOT_WANTED
+     */
+    public int maxPrice(byte[] buffer, int offset, int length) {
+        int slot = find(buffer, offset, length, hash(buffer, offset, length));
+        return slot < 0 ? NOT_WANTED : table[slot + PRICE];
+    }
+
+    /**
+     * @param title
+     * @return the maximum price for the title, or NOT_WANTED
+     */
+    public int maxPrice(String title) {
+        byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+        return maxPrice(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param price
+     * @return true if the title, given as UTF-8 bytes, is wanted at that price
+     */
+    public boolean wants(byte[] buffer, int offset, int length, int price) {
+        int maxPrice = maxPrice(buffer, offset, length);
+        return maxPrice != NOT_WANTED && maxPrice >= price;
+    }
+
+    /**
+     * Adds a title or changes its maximum price
+     * @param title
+     * @param maxPrice not negative
+     */
+    public void put(String title, int maxPrice) {
+        if (maxPrice < 0) {
+            throw new IllegalArgumentException("Negative maximum price for " + title + ": " + maxPrice);
+        }
+        byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(bytes, 0, bytes.length);
+        int slot = find(bytes, 0, bytes.length, hash);
+        if (slot >= 0) {
+            table[slot + PRICE] = maxPrice;
+            return;
+        }
+        if ((size + deleted + 1) * 4 > capacity * 3) {
+            rehash(2 * (size + 1));
+        }
+        insert(bytes, 0, bytes.length, hash, maxPrice);
+    }
+
+    /**
+     * Adds or updates many titles, sizing the table once
+     * @param titles maximum price by title
+     */
+    public void putAll(Map<String, Integer> titles) {
+        if ((size + deleted + titles.size()) * 4 > capacity * 3) {
+            rehash(size + titles.size());
+        }
+        for (Map.Entry<String, Integer> entry : titles.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @param title
+     * @return true if the title was wanted
+     */
+    public boolean remove(String title) {
+        byte[] bytes = title.getBytes(StandardCharsets.UTF_8);
+        return remove(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Removes a title given as UTF-8 bytes
+     * @return true if the title was wanted
+     */
+    public boolean remove(byte[] buffer, int offset, int length) {
+        int slot = find(buffer, offset, length, hash(buffer, offset, length));
+        if (slot < 0) {
+            return false;
+        }
+        table[slot + LENGTH] = DELETED;
+        garbage += length;
+        size--;
+        deleted++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a copy of the wishlist, maximum price by title
+     */
+    public Map<String, Integer> toMap() {
+        Map<String, Integer> map = new LinkedHashMap<>(size * 2);
+        for (int slot = 0; slot < table.length; slot += SLOT) {
+            if (table[slot + LENGTH] >= 0) {
+                map.put(new String(arena, table[slot + OFFSET], table[slot + LENGTH], StandardCharsets.UTF_8), table[slot + PRICE]);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "Wishlist" + toMap();
+    }
+
+    // Index in the table of the key's slot, or -1
+    private int find(byte[] buffer, int offset, int length, int hash) {
+        for (int slot = (hash & mask) * SLOT;; slot = (slot + SLOT) & tableMask) {
+            int slotLength = table[slot + LENGTH];
+            if (slotLength == FREE) {
+                return -1;
+            }
+            if (slotLength == length && table[slot + HASH] == hash && sameBytes(table[slot + OFFSET], buffer, offset, length)) {
+                return slot;
+            }
+        }
+    }
+
+    // Puts a key known to be absent in the first free or deleted slot
+    private void insert(byte[] buffer, int offset, int length, int hash, int price) {
+        int slot = (hash & mask) * SLOT;
+        while (table[slot + LENGTH] >= 0) {
+            slot = (slot + SLOT) & tableMask;
+        }
+        if (table[slot + LENGTH] == DELETED) {
+            deleted--;
+        }
+        if (arenaSize + length > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaSize + length));
+        }
+        System.arraycopy(buffer, offset, arena, arenaSize, length);
+        table[slot + HASH] = hash;
+        table[slot + LENGTH] = length;
+        table[slot + OFFSET] = arenaSize;
+        table[slot + PRICE] = price;
+        arenaSize += length;
+        size++;
+    }
+
+    // Rebuilds the table for the given number of keys, dropping deleted slots and their bytes
+    private void rehash(int keys) {
+        int[] oldTable = table;
+        byte[] oldArena = arena;
+        int slots = MIN_CAPACITY;
+        while (slots * 3 < keys * 4 + 4) {
+            slots <<= 1;
+        }
+        allocate(slots);
+        arena = new byte[Math.max(1024, arenaSize - garbage)];
+        arenaSize = 0;
+        garbage = 0;
+        size = 0;
+        deleted = 0;
+        for (int slot = 0; slot < oldTable.length; slot += SLOT) {
+            if (oldTable[slot + LENGTH] >= 0) {
+                insert(oldArena, oldTable[slot + OFFSET], oldTable[slot + LENGTH], oldTable[slot + HASH], oldTable[slot + PRICE]);
+            }
+        }
+    }
+
+    private void allocate(int slots) {
+        table = new int[slots * SLOT];
+        for (int slot = 0; slot < table.length; slot += SLOT) {
+            table[slot + LENGTH] = FREE;
+        }
+        capacity = slots;
+        mask = slots - 1;
+        tableMask = table.length - 1;
+    }
+
+    private boolean sameBytes(int arenaOffset, byte[] buffer, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (arena[arenaOffset + i] != buffer[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a over the bytes, finished with a multiplicative mix so the low bits pick the slot
+    private static int hash(byte[] buffer, int offset, int length) {
+        int hash = 0x811C9DC5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ buffer[i]) * 0x01000193;
+        }
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
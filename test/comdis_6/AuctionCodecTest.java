@@ -0,0 +1,107 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of the binary messages and rejection of truncated ones
+ *
+ * @author aculledor
+ */
+public class AuctionCodecTest {
+
+    private final AuctionCodec.Reader reader = new AuctionCodec.Reader();
+
+    @Test
+    public void offerRoundTrip() {
+        byte[] title = AuctionCodec.encodeTitle("Cien años de soledad");
+        byte[] message = AuctionCodec.encodeOffer(AuctionCodec.CFP, 1L << 53 | 42, 3, 25, AuctionType.DUTCH.getCode(), title);
+        assertTrue(reader.wrap(message));
+        assertEquals(AuctionCodec.CFP, reader.type());
+        assertEquals(1, reader.count());
+        assertTrue(reader.next());
+        assertEquals(1L << 53 | 42, reader.id());
+        assertEquals(3, reader.round());
+        assertEquals(25, reader.price());
+        assertEquals(AuctionType.DUTCH.getCode(), reader.auctionType());
+        assertEquals("Cien años de soledad", reader.title());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void proposalRoundTrip() {
+        assertTrue(reader.wrap(AuctionCodec.encodeProposal(-7L, 9, true, Integer.MAX_VALUE)));
+        assertEquals(AuctionCodec.PROPOSAL, reader.type());
+        assertTrue(reader.next());
+        assertEquals(-7L, reader.id());
+        assertEquals(9, reader.round());
+        assertTrue(reader.accepted());
+        assertEquals(Integer.MAX_VALUE, reader.bid());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void interestsRoundTrip() {
+        List<byte[]> messages = AuctionCodec.encodeInterests(Arrays.asList("Dune", "Ubik"), Collections.singletonList("Solaris"));
+        assertEquals(1, messages.size());
+        assertTrue(reader.wrap(messages.get(0)));
+        assertEquals(AuctionCodec.INTERESTS, reader.type());
+        assertEquals(3, reader.count());
+        assertTrue(reader.next());
+        assertTrue(reader.added());
+        assertEquals("Dune", reader.title());
+        assertTrue(reader.next());
+        assertTrue(reader.added());
+        assertEquals("Ubik", reader.title());
+        assertTrue(reader.next());
+        assertFalse(reader.added());
+        assertEquals("Solaris", reader.title());
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void interestsSplitAtMaxRecords() {
+        List<String> added = Collections.nCopies(AuctionCodec.MAX_RECORDS + 1, "T");
+        List<byte[]> messages = AuctionCodec.encodeInterests(added, Collections.<String>emptyList());
+        assertEquals(2, messages.size());
+        assertTrue(reader.wrap(messages.get(1)));
+        assertEquals(1, reader.count());
+        assertTrue(AuctionCodec.encodeInterests(Collections.<String>emptyList(), Collections.<String>emptyList()).isEmpty());
+    }
+
+    @Test
+    public void truncatedMessagesAreRejected() {
+        byte[] offer = AuctionCodec.encodeOffer(AuctionCodec.TRADE, 1, 0, 10, AuctionType.ENGLISH.getCode(), AuctionCodec.encodeTitle("Dune"));
+        byte[] proposal = AuctionCodec.encodeProposal(1, 0, false, 0);
+        byte[] interests = AuctionCodec.encodeInterests(Collections.singletonList("Dune"), Collections.<String>emptyList()).get(0);
+        for (byte[] message : Arrays.asList(offer, proposal, interests)) {
+            // Every cut inside the record, from the header to the last byte
+            for (int length = AuctionCodec.HEADER_SIZE; length < message.length; length++) {
+                assertTrue(reader.wrap(Arrays.copyOf(message, length)));
+                assertFalse("cut at " + length + " of " + message.length, reader.next());
+            }
+            assertFalse(reader.wrap(Arrays.copyOf(message, AuctionCodec.HEADER_SIZE - 1)));
+        }
+    }
+
+    @Test
+    public void foreignContentIsRejected() {
+        assertFalse(reader.wrap(null));
+        byte[] message = AuctionCodec.encodeProposal(1, 0, true, 5);
+        message[0] = AuctionCodec.VERSION + 1;
+        assertFalse(reader.wrap(message));
+        message[0] = AuctionCodec.VERSION;
+        message[1] = 99;
+        assertFalse(reader.wrap(message));
+    }
+}
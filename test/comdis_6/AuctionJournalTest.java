@@ -0,0 +1,157 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import jade.core.AID;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays of the journal after a crash and after a compaction
+ *
+ * @author aculledor
+ */
+public class AuctionJournalTest {
+
+    private static final String SELLER = "seller";
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void replayDropsTruncatedLastRecord() throws IOException {
+        SalesRepository sales = openSales();
+        AuctionJournal journal = AuctionJournal.open(directory, SELLER, sales);
+        Auction kept = new Auction("Kept", 10, 2, 1000, AuctionType.ENGLISH);
+        Auction torn = new Auction("Torn", 20, 2, 1000, AuctionType.DUTCH);
+        journal.created(kept);
+        kept.addBuyer(new AID("buyer@platform", AID.ISGUID)).pushBuyersList().incrementRound();
+        journal.roundAdvanced(kept);
+        journal.created(torn);
+        journal.close();
+        sales.close();
+
+        // Cut the last record half way, as a crash while appending would
+        File file = journalFiles().get(0);
+        long[] last = lastRecord(file);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(last[0] + last[1] / 2);
+        }
+
+        sales = openSales();
+        journal = AuctionJournal.open(directory, SELLER, sales);
+        assertEquals(1, journal.getLive().size());
+        Auction replayed = journal.getLive().get(kept.getId());
+        assertEquals("Kept", replayed.getTitle());
+        assertEquals(1, replayed.getRound());
+        assertEquals(1, replayed.getLastRoundBuyers().size());
+        assertFalse(journal.getLive().containsKey(torn.getId()));
+
+        // The journal goes on appending after the last whole record
+        Auction next = new Auction("Next", 30, 5, 1000, AuctionType.SEALED_FIRST_PRICE);
+        journal.created(next);
+        journal.close();
+        sales.close();
+
+        sales = openSales();
+        journal = AuctionJournal.open(directory, SELLER, sales);
+        assertEquals(2, journal.getLive().size());
+        assertEquals(AuctionType.SEALED_FIRST_PRICE, journal.getLive().get(next.getId()).getType());
+        journal.close();
+        sales.close();
+    }
+
+    @Test
+    public void replayAfterCompaction() throws IOException {
+        SalesRepository sales = openSales();
+        AuctionJournal journal = AuctionJournal.open(directory, SELLER, sales);
+        Auction sold = new Auction("Sold", 10, 2, 1000, AuctionType.ENGLISH);
+        Auction open = new Auction("Open", 20, 2, 1000, AuctionType.ENGLISH);
+        journal.created(sold);
+        journal.created(open);
+        open.addBuyer(new AID("buyer@platform", AID.ISGUID)).pushBuyersList().incrementRound().incrementRound();
+        journal.roundAdvanced(open);
+        AID buyer = new AID("buyer@platform", AID.ISGUID);
+        long sequence = sales.add(sold.getId(), sold.getTitle(), buyer.getName(), 12, 1000L);
+        journal.sold(sold, sequence, buyer, 12, 1000L);
+        journal.compact();
+        Auction late = new Auction("Late", 30, 2, 1000, AuctionType.ENGLISH);
+        journal.created(late);
+        journal.close();
+        sales.close();
+
+        // Only the new generation is left, and the sale is in the spill file
+        assertEquals(1, journalFiles().size());
+        sales = openSales();
+        journal = AuctionJournal.open(directory, SELLER, sales);
+        assertEquals(2, journal.getLive().size());
+        assertTrue(journal.getLive().containsKey(open.getId()));
+        assertTrue(journal.getLive().containsKey(late.getId()));
+        assertEquals(2, journal.getLive().get(open.getId()).getRound());
+        assertEquals(1, sales.getTotalSales());
+        assertEquals(1, sales.countByTitle("Sold"));
+        assertEquals(12, sales.revenueByTitle("Sold"));
+        journal.close();
+        sales.close();
+    }
+
+    private SalesRepository openSales() throws IOException {
+        return SalesRepository.open(new File(directory, SELLER + ".sales"), 16);
+    }
+
+    private List<File> journalFiles() {
+        List<File> files = new ArrayList<>();
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".journal")) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    // Position and size of the last record, walking [length:4][crc32:4][type:1][payload] after the file header
+    private static long[] lastRecord(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long position = 8;
+            long[] last = null;
+            while (position + 4 <= in.length()) {
+                in.seek(position);
+                int length = in.readInt();
+                if (length <= 0) {
+                    break;
+                }
+                last = new long[]{position, 8 + length};
+                position += 8 + length;
+            }
+            return last;
+        }
+    }
+}
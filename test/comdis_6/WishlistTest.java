@@ -0,0 +1,119 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package comdis_6;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Puts, removals and rehashes of the open-addressing wishlist, with the
+ * tombstones removals leave in the probe sequences
+ *
+ * @author aculledor
+ */
+public class WishlistTest {
+
+    @Test
+    public void putUpdatesAndRemoves() {
+        Wishlist wishlist = new Wishlist();
+        wishlist.put("Dune", 10);
+        wishlist.put("Dune", 15);
+        wishlist.put("Ubik", 0);
+        assertEquals(2, wishlist.size());
+        assertEquals(15, wishlist.maxPrice("Dune"));
+        assertEquals(0, wishlist.maxPrice("Ubik"));
+        assertTrue(wishlist.remove("Dune"));
+        assertFalse(wishlist.remove("Dune"));
+        assertEquals(Wishlist.NOT_WANTED, wishlist.maxPrice("Dune"));
+        assertEquals(1, wishlist.size());
+    }
+
+    @Test
+    public void lookupsByBytes() {
+        Wishlist wishlist = new Wishlist();
+        wishlist.put("Cien años de soledad", 20);
+        byte[] buffer = "xxCien años de soledadyy".getBytes(StandardCharsets.UTF_8);
+        int length = buffer.length - 4;
+        assertEquals(20, wishlist.maxPrice(buffer, 2, length));
+        assertTrue(wishlist.wants(buffer, 2, length, 20));
+        assertFalse(wishlist.wants(buffer, 2, length, 21));
+        assertTrue(wishlist.remove(buffer, 2, length));
+        assertTrue(wishlist.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativePriceIsRefused() {
+        new Wishlist().put("Dune", -5);
+    }
+
+    @Test
+    public void titlesPastTombstonesAreFound() {
+        Wishlist wishlist = new Wishlist();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            wishlist.put("Title " + i, i);
+            expected.put("Title " + i, i);
+        }
+        // Every other title leaves a tombstone, possibly in front of the ones kept
+        for (int i = 0; i < 200; i += 2) {
+            assertTrue(wishlist.remove("Title " + i));
+            expected.remove("Title " + i);
+        }
+        assertEquals(expected, wishlist.toMap());
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i % 2 == 0 ? Wishlist.NOT_WANTED : i, wishlist.maxPrice("Title " + i));
+        }
+
+        // Titles put back reuse the tombstones without duplicating the live keys
+        for (int i = 0; i < 200; i += 4) {
+            wishlist.put("Title " + i, 1000 + i);
+            expected.put("Title " + i, 1000 + i);
+        }
+        for (int i = 1; i < 200; i += 2) {
+            wishlist.put("Title " + i, 2000 + i);
+            expected.put("Title " + i, 2000 + i);
+        }
+        assertEquals(expected.size(), wishlist.size());
+        assertEquals(expected, wishlist.toMap());
+    }
+
+    @Test
+    public void churnRehashesAwayTombstones() {
+        Wishlist wishlist = new Wishlist();
+        wishlist.put("Kept", 1);
+        // A steady size with endless removals only ever fills the table with
+        // tombstones, the rehashes must drop them and their arena bytes
+        for (int i = 0; i < 100000; i++) {
+            wishlist.put("Churn " + i, i);
+            assertTrue(wishlist.remove("Churn " + i));
+        }
+        assertEquals(1, wishlist.size());
+        assertEquals(1, wishlist.maxPrice("Kept"));
+        assertEquals(Wishlist.NOT_WANTED, wishlist.maxPrice("Churn 99999"));
+        wishlist.put("Churn 99999", 7);
+        assertEquals(7, wishlist.maxPrice("Churn 99999"));
+        assertEquals(2, wishlist.size());
+    }
+
+    @Test
+    public void putAllSizesOnceAndKeepsEveryTitle() {
+        Wishlist wishlist = new Wishlist();
+        wishlist.put("Dune", 1);
+        wishlist.remove("Dune");
+        Map<String, Integer> titles = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            titles.put("Title " + i, i);
+        }
+        wishlist.putAll(titles);
+        assertEquals(titles, wishlist.toMap());
+        assertEquals(Wishlist.NOT_WANTED, wishlist.maxPrice("Dune"));
+    }
+}